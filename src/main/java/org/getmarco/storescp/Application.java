@@ -1,64 +1,51 @@
 package org.getmarco.storescp;
 
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.aop.interceptor.AsyncUncaughtExceptionHandler;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
-import org.springframework.scheduling.annotation.AsyncConfigurer;
-import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.annotation.EnableScheduling;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Configuration;
 
-import java.lang.reflect.Method;
-import java.util.concurrent.Executor;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.nio.file.Paths;
 
-@EnableAsync
 @EnableScheduling
 @SpringBootApplication
-public class Application implements AsyncConfigurer {
+public class Application {
 
 	@Autowired
 	private Config config;
+	@Autowired
+	private UploadRateLimiter uploadRateLimiter;
 
 	public static void main(String[] args) {
 		SpringApplication.run(Application.class, args);
 	}
 
 	@Bean
-	public AmazonS3 s3Client() {
-		return AmazonS3ClientBuilder.standard().withRegion(config.getStorageBucketRegion()).build();
-	}
-
-	@Override
-	public Executor getAsyncExecutor() {
-		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-		executor.setCorePoolSize(3);
-		executor.setMaxPoolSize(10);
-		executor.setQueueCapacity(5);
-		executor.setThreadNamePrefix("scp-async-");
-		executor.initialize();
-		return executor;
+	@ConditionalOnProperty(prefix = "storescp", name = "object-store", havingValue = Config.S3_OBJECT_STORE,
+	  matchIfMissing = true)
+	public ObjectStoreSink s3ObjectStoreSink() {
+		S3AsyncClient s3 = S3AsyncClient.builder()
+		  .region(Region.of(config.getStorageBucketRegion()))
+		  .httpClientBuilder(NettyNioAsyncHttpClient.builder().maxConcurrency(config.getMaxConcurrentUploads()))
+		  // Zip archives and metadata files are sent with the MD5 computed
+		  // while writing them, verified by S3, so skip hashing the request
+		  // body again
+		  .serviceConfiguration(S3Configuration.builder().checksumValidationEnabled(false).build())
+		  .build();
+		return new S3ObjectStoreSink(s3, config.getStorageBucket(), uploadRateLimiter);
 	}
 
-	@Override
-	public AsyncUncaughtExceptionHandler getAsyncUncaughtExceptionHandler() {
-		return new CustomAsyncExceptionHandler();
-	}
-
-	public static class CustomAsyncExceptionHandler implements AsyncUncaughtExceptionHandler {
-		private static final Logger LOG = LoggerFactory.getLogger(CustomAsyncExceptionHandler.class);
-		@Override
-		public void handleUncaughtException(
-		Throwable throwable, Method method, Object... obj) {
-			LOG.error("async-uncaught-exception '{}' at method: {}, params: {}", throwable.getMessage(),
-			  method.getName(), Stream.of(obj).map(Object::toString).collect(Collectors.toList()));
-		}
+	@Bean
+	@ConditionalOnProperty(prefix = "storescp", name = "object-store", havingValue = Config.FILESYSTEM_OBJECT_STORE)
+	public ObjectStoreSink fileSystemObjectStoreSink() {
+		if (config.getObjectStoreDir() == null)
+			throw new IllegalArgumentException("null object store directory");
+		return new FileSystemObjectStoreSink(Paths.get(config.getObjectStoreDir()), uploadRateLimiter);
 	}
 }
@@ -2,6 +2,7 @@ package org.getmarco.storescp;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.io.DicomOutputStream;
 import org.dcm4che3.net.Association;
@@ -16,12 +17,20 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * Implementing class for this application's storage service class provide (SCP).
@@ -32,10 +41,25 @@ public class CStoreSCP extends BasicCStoreSCP {
 
     @Autowired
     private Config config;
+    @Autowired
+    private StudyTracer tracer;
+    @Autowired
+    private UploadRateLimiter uploadRateLimiter;
+    @Autowired
+    private DiskSpaceMonitor diskSpaceMonitor;
+    @Autowired
+    private IngestRecorder recorder;
+    @Autowired
+    private StgCmtSCP stgCmtSCP;
+    @Autowired
+    private StudyCompletionCheck completionCheck;
 
     @Override
     protected void store(Association as, PresentationContext pc, Attributes rq, PDVInputStream data, Attributes rsp)
       throws IOException {
+        // Arrival time for the ingest trace: dcm4che hands over the request
+        // once its command and the start of its data arrived
+        long arrival = System.nanoTime();
         LOG.info("receiving data to store");
         Util.logAssociation(LOG, as);
 
@@ -47,6 +71,11 @@ public class CStoreSCP extends BasicCStoreSCP {
             throw new DicomServiceException(Status.NotAuthorized, "called ae title is unknown: " + calledAET);
         if (!config.hasAetitlePair(callingAET, calledAET))
             throw new DicomServiceException(Status.NotAuthorized, "calling ae title is unknown: " + callingAET);
+        if (!config.isAcceptedOnListener(as.getConnection().getCommonName(), calledAET))
+            throw new DicomServiceException(Status.NotAuthorized, "called ae title not accepted on this port: " + calledAET);
+        // Refuse transfers before the storage volume fills up
+        if (diskSpaceMonitor.isOverloaded())
+            throw new DicomServiceException(Status.OutOfResources, "storage directory above disk high watermark");
 
         rsp.setInt(Tag.Status, VR.US, Status.Success);
         String storageDir = config.getStorageDir();
@@ -56,40 +85,69 @@ public class CStoreSCP extends BasicCStoreSCP {
         // Store incoming file with path like:
         // <storage dir>/incoming/7c10c8cd-1536-4510-8cb7-c17570abe3dd.part
         Path incomingFile = Paths.get(storageDir, Config.INCOMING_DIR, UUID.randomUUID().toString() + Config.PART_EXT);
+        Checksums checksums;
         try {
-            storeTo(as, as.createFileMetaInformation(iuid, cuid, tsuid), data, incomingFile.toFile());
+            checksums = storeTo(as, as.createFileMetaInformation(iuid, cuid, tsuid), data, incomingFile.toFile());
         } catch (Exception e) {
             deleteFile(as, incomingFile.toFile());
+            throw new DicomServiceException(Status.ProcessingFailure, e);
         }
 
         Attributes attributes = Util.parse(incomingFile);
         Util.logDicomFileAttributes(LOG, attributes);
         // Move to path like:
         // <storage dir>/SCP/SCU/1.2.840.xxxxx.3.152.235.2.12.187658476/1.2.840.xxxxx.3.152.235.2.12.187636473.dcm
-        Path studyFile = Paths.get(storageDir, calledAET, callingAET, attributes.getString(Tag.StudyInstanceUID),
-          iuid + Config.DCM_EXT);
+        String studyUid = attributes.getString(Tag.StudyInstanceUID);
+        Path studyFile = Paths.get(storageDir, calledAET, callingAET, studyUid, iuid + Config.DCM_EXT);
         // Sanity check
         if (Files.exists(studyFile))
             throw new IllegalStateException("file already exists: " + studyFile);
+        // Checksum file goes into the study directory first, and the study
+        // isn't completed until both are moved, so a completed study never
+        // holds a dicom file without its checksums
+        Path incomingSumFile = Checksums.checksumFile(incomingFile);
+        Path studySumFile = Checksums.checksumFile(studyFile);
+        Lock incomingLock = completionCheck.getIncomingLock();
         try {
-            renameTo(as, incomingFile.toFile() , studyFile.toFile());
+            checksums.write(incomingSumFile);
+            incomingLock.lock();
+            try {
+                renameTo(as, incomingSumFile.toFile(), studySumFile.toFile());
+                renameTo(as, incomingFile.toFile() , studyFile.toFile());
+            } finally {
+                incomingLock.unlock();
+            }
         } catch (Exception e) {
             deleteFile(as, incomingFile.toFile());
+            deleteFile(as, incomingSumFile.toFile());
             deleteFile(as, studyFile.toFile());
+            deleteFile(as, studySumFile.toFile());
+            throw new DicomServiceException(Status.ProcessingFailure, e);
         }
+        tracer.instanceReceived(calledAET, callingAET, studyUid);
+        stgCmtSCP.instanceReceived(calledAET, callingAET, studyUid, iuid);
+        uploadRateLimiter.ingestReceived(checksums.getSize());
+        recorder.instanceStored(as, arrival, studyUid, attributes.getString(Tag.SeriesInstanceUID), cuid, tsuid,
+          checksums.getSize());
 
         int numCstoreRqReceived = as.getNumberOfReceived(Dimse.C_STORE_RQ);
         LOG.info("received {} cstore requests", numCstoreRqReceived);
     }
 
-    // Store dicom data to a file in the filesystem
-    private void storeTo(Association as, Attributes fmi, PDVInputStream data, File file) throws IOException  {
+    // Store dicom data to a file in the filesystem, computing the file's
+    // CRC-32 (and optionally SHA-256) on the way
+    private Checksums storeTo(Association as, Attributes fmi, PDVInputStream data, File file) throws IOException  {
         LOG.info("{}: M-WRITE {}", as, file);
         file.getParentFile().mkdirs();
-        try (DicomOutputStream out = new DicomOutputStream(file)) {
+        CRC32 crc = new CRC32();
+        MessageDigest sha256 = config.isSha256Checksums() ? Util.sha256() : null;
+        try (OutputStream fileOut = new FileOutputStream(file);
+          DicomOutputStream out = new DicomOutputStream(new BufferedOutputStream(new CheckedOutputStream(
+            sha256 == null ? fileOut : new DigestOutputStream(fileOut, sha256), crc)), UID.ExplicitVRLittleEndian)) {
             out.writeFileMetaInformation(fmi);
             data.copyTo(out);
         }
+        return new Checksums(file.length(), crc.getValue(), sha256 == null ? null : Util.toHex(sha256.digest()));
     }
 
     // Rename/move a filesytem file
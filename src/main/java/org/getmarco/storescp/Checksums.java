@@ -0,0 +1,63 @@
+package org.getmarco.storescp;
+
+import lombok.Value;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Simple value class holding the checksums of a received dicom file, computed
+ * while the file is written. Persisted next to the dicom file as a one line
+ * text file: '&lt;size&gt; &lt;crc32 hex&gt; [&lt;sha256 hex&gt;]'.
+ */
+@Value
+public class Checksums {
+    long size;
+    long crc32;
+    // Lowercase hex SHA-256, null if not computed
+    String sha256;
+
+    /**
+     * Returns the checksum file for a dicom file, like
+     * &lt;instance UID&gt;.dcm.sum
+     * @param dicomFile the dicom file
+     * @return the path of its checksum file
+     */
+    public static Path checksumFile(Path dicomFile) {
+        return dicomFile.resolveSibling(dicomFile.getFileName().toString() + Config.SUM_EXT);
+    }
+
+    /**
+     * Read checksums from a checksum file.
+     * @param sumFile the checksum file
+     * @return the checksums
+     * @throws IOException if the file can't be read or is malformed
+     */
+    public static Checksums read(Path sumFile) throws IOException {
+        String[] fields = new String(Files.readAllBytes(sumFile), StandardCharsets.US_ASCII).trim().split(" ");
+        if (fields.length < 2)
+            throw new IOException("invalid checksum file: " + sumFile);
+        try {
+            return new Checksums(Long.parseLong(fields[0]), Long.parseLong(fields[1], 16),
+              fields.length > 2 ? fields[2] : null);
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid checksum file: " + sumFile, e);
+        }
+    }
+
+    /**
+     * Write these checksums to a checksum file.
+     * @param sumFile the checksum file
+     * @throws IOException if the file can't be written
+     */
+    public void write(Path sumFile) throws IOException {
+        Files.write(sumFile, (size + " " + getCrc32Hex() + (sha256 == null ? "" : " " + sha256))
+          .getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public String getCrc32Hex() {
+        return String.format("%08x", crc32);
+    }
+}
@@ -0,0 +1,32 @@
+package org.getmarco.storescp;
+
+import lombok.Value;
+
+import java.nio.file.Path;
+
+/**
+ * Simple value class describing a 'complete' study that has been moved to the
+ * processing work area and is waiting for, or going through, processing.
+ */
+@Value
+public class CompletedStudy {
+    // Work area directory holding the dicom files of the study:
+    // <storageDir>/zip/<uuid>
+    Path path;
+    String calledAET;
+    String callingAET;
+    String studyUid;
+    // Modality of the study, null if it couldn't be read
+    String modality;
+    // Total size of the dicom files of the study (bytes)
+    long size;
+
+    /**
+     * Returns the id of the study in the processing work area (the uuid
+     * directory name), used to trace the study through processing.
+     * @return the work area id of the study
+     */
+    public String getId() {
+        return path.getFileName().toString();
+    }
+}
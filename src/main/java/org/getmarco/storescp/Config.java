@@ -1,7 +1,9 @@
 package org.getmarco.storescp;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
+import org.dcm4che3.net.Connection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.context.properties.ConfigurationProperties;
@@ -11,6 +13,12 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
@@ -26,6 +34,8 @@ public class Config {
     public static final String PART_EXT = ".part";
     /** File extension for transferred dicom files */
     public static final String DCM_EXT = ".dcm";
+    /** File extension for the checksum file stored with each dicom file */
+    public static final String SUM_EXT = ".sum";
     /** File extension for created zip archives */
     public static final String ZIP_EXT = ".zip";
     /** File extension for created study metadata files */
@@ -48,6 +58,35 @@ public class Config {
      * files are in a study, so have to wait until they stop coming.
      */
     public static final int DEFAULT_STUDY_WAIT_TIME = 900000;
+    /** Name of the priority class for studies not matching any priority rule */
+    public static final String DEFAULT_PRIORITY_CLASS = "default";
+    /** Default disk usage (percent) above which incoming transfers are refused */
+    public static final double DEFAULT_DISK_HIGH_WATERMARK = 90;
+    /** Default disk usage (percent) below which incoming transfers are accepted again */
+    public static final double DEFAULT_DISK_LOW_WATERMARK = 80;
+    /**
+     * Default study wait time (milliseconds) while the disk is above its high
+     * watermark
+     */
+    public static final int DEFAULT_OVERLOAD_STUDY_WAIT_TIME = 5000;
+    /** Object store uploading to the S3 storage bucket */
+    public static final String S3_OBJECT_STORE = "s3";
+    /** Object store writing to a local directory */
+    public static final String FILESYSTEM_OBJECT_STORE = "filesystem";
+    /** Default maximum number of concurrent S3 upload requests */
+    public static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 8;
+    /** Name of the transport profile used by listeners without a profile */
+    public static final String DEFAULT_TRANSPORT_PROFILE = "default";
+    /** Name of the listener on 'port' when no listeners are configured */
+    public static final String DEFAULT_LISTENER = "default";
+    /** Name of the TLS listener on the TLS port when no listeners are configured */
+    public static final String DEFAULT_TLS_LISTENER = "tls";
+    /** Default number of finished study lifecycle traces to keep */
+    public static final int DEFAULT_TRACE_HISTORY_SIZE = 1000;
+    /** Default time (milliseconds) to keep records of uploaded studies, 7 days */
+    public static final long DEFAULT_FINALIZED_STUDY_RETENTION = 7 * 24 * 60 * 60 * 1000L;
+    /** Default time (milliseconds) a graceful drain waits before giving up */
+    public static final long DEFAULT_DRAIN_TIMEOUT = 600000;
 
     // Identifier for this dicom endpoint
     private String deviceName;
@@ -63,6 +102,20 @@ public class Config {
     private String storageBucketRegion;
     // The port to listen on for incoming store requests
     private int port;
+    // DICOM TLS listener, alongside the plain port when no listeners are
+    // configured. Configured listeners use these settings with 'tls: true'.
+    private Tls tls = new Tls();
+    // Named transport settings (PDU lengths, socket buffers, backlog) that
+    // listeners can refer to. The 'default' profile applies to listeners
+    // without a profile.
+    private Map<String, TransportProfile> transportProfiles = new HashMap<>();
+    // Listening connections. If none are configured, the application listens
+    // on 'port' (and the TLS port if enabled) with the default profile.
+    private List<Listener> listeners = new ArrayList<>();
+    // Effective listeners by name, built once from the bound properties
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private volatile Map<String, Listener> effectiveListeners;
     // Whether to delete (recursively) the contents of the filesystem workspace
     // on application startup. It's an easy way to cleanup the effective
     // 'application state' stored in the filesystem, but any transfers that had
@@ -76,6 +129,69 @@ public class Config {
     // is necessary since dicom transfers don't include information about how
     // many files will be sent.
     private Map<String, Map<String, Integer>> aetitlePairs;
+    // Where to send storage commitment results (N-EVENT-REPORT) for remote AE
+    // Titles that release the association before the result is available.
+    // Maps the calling AE Title to 'host:port'.
+    private Map<String, String> storageCommitmentDestinations = new HashMap<>();
+    // Worker threads and queue capacity of each study processing pipeline
+    // stage (parse, archive, upload, cleanup)
+    private Map<String, StageConfig> pipelineStages = new HashMap<>();
+    // Number of finished study lifecycle traces kept for the 'studytrace'
+    // management endpoint
+    private int traceHistorySize = DEFAULT_TRACE_HISTORY_SIZE;
+    // Directory holding the records of finalized studies, used to upload
+    // instances arriving after a study was finalized as a delta archive. Kept
+    // outside the storage directory, so the records survive clearing it.
+    private String finalizedStudyDir;
+    // Time (milliseconds) to keep the record of an uploaded study, within
+    // which late arriving instances are uploaded as a delta archive
+    private long finalizedStudyRetention = DEFAULT_FINALIZED_STUDY_RETENTION;
+    // File to record an anonymized trace of incoming traffic to, for replay
+    // with TraceReplay; null to disable recording
+    private String ingestTraceFile;
+    // Whether to run dicom associations and study processing on virtual
+    // threads, requires running on JDK 21 or later
+    private boolean virtualThreads;
+    // Time (milliseconds) a graceful drain waits for open associations to
+    // finish and processing to empty before exiting anyway
+    private long drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+    // Whether to compute a SHA-256 checksum (besides CRC-32) of each received
+    // dicom file, included in the study metadata
+    private boolean sha256Checksums;
+    // Disk usage (percent) of the filesystem workspace volume above which new
+    // incoming transfers are refused with status 'Out of Resources'
+    private double diskHighWatermark = DEFAULT_DISK_HIGH_WATERMARK;
+    // Disk usage (percent) below which incoming transfers are accepted again
+    private double diskLowWatermark = DEFAULT_DISK_LOW_WATERMARK;
+    // Study wait time (milliseconds) while the disk is above its high
+    // watermark, so studies are completed early to free disk space, without
+    // splitting studies still being received into many small archives
+    private int overloadStudyWaitTime = DEFAULT_OVERLOAD_STUDY_WAIT_TIME;
+    // Where to upload processed studies: 's3' (default) for the storage
+    // bucket, or 'filesystem' for a local directory (for testing without AWS)
+    private String objectStore = S3_OBJECT_STORE;
+    // Local directory used as object store when object store is 'filesystem'
+    private String objectStoreDir;
+    // Maximum number of concurrent S3 upload requests
+    private int maxConcurrentUploads = DEFAULT_MAX_CONCURRENT_UPLOADS;
+    // Upload bandwidth ceiling shared by all uploads (bytes per second, 0 for
+    // unlimited)
+    private long uploadRateLimit;
+    // Time-of-day upload rate limits, e.g. to keep uploads slow during the
+    // day. The first schedule matching the current time applies.
+    private List<RateSchedule> uploadRateSchedules = new ArrayList<>();
+    // Upload rate limit applied while incoming dicom transfers are above a
+    // throughput threshold
+    private IngestThrottle uploadIngestThrottle;
+    // Rules assigning completed studies to processing priority classes. The
+    // first matching rule wins, studies matching no rule are in the default
+    // class (priority 0).
+    private List<PriorityRule> processingPriorities = new ArrayList<>();
+    // Weights for sharing processing between calling AE Titles within a
+    // priority class (default weight 1). A calling AE Title with weight 2 gets
+    // twice the processed bytes of one with weight 1 while both have studies
+    // waiting.
+    private Map<String, Integer> callingAetitleWeights = new HashMap<>();
 
     /**
      * For each combination of calling/called AE Titles, this method returns
@@ -105,6 +221,81 @@ public class Config {
         return this.getAetitlePairs().get(calledAET) != null;
     }
 
+    /**
+     * Returns the listening connections: the configured listeners, or if none
+     * are configured, a listener on 'port' plus one on the TLS port if TLS is
+     * enabled.
+     * @return the listeners
+     * @throws IllegalArgumentException if listeners have no name or the same
+     * name
+     */
+    public List<Listener> getEffectiveListeners() {
+        return new ArrayList<>(this.effectiveListenersByName().values());
+    }
+
+    // Effective listeners by name, built on first use
+    private Map<String, Listener> effectiveListenersByName() {
+        Map<String, Listener> result = effectiveListeners;
+        if (result == null) {
+            result = new LinkedHashMap<>();
+            for (Listener listener : this.createEffectiveListeners()) {
+                if (listener.getName() == null)
+                    throw new IllegalArgumentException("listener without name on port: " + listener.getPort());
+                if (result.put(listener.getName(), listener) != null)
+                    throw new IllegalArgumentException("duplicate listener name: " + listener.getName());
+            }
+            effectiveListeners = result;
+        }
+        return result;
+    }
+
+    private List<Listener> createEffectiveListeners() {
+        if (!this.getListeners().isEmpty())
+            return this.getListeners();
+        List<Listener> list = new ArrayList<>();
+        Listener plain = new Listener();
+        plain.setName(DEFAULT_LISTENER);
+        plain.setPort(this.getPort());
+        list.add(plain);
+        if (this.getTls().isEnabled()) {
+            Listener secure = new Listener();
+            secure.setName(DEFAULT_TLS_LISTENER);
+            secure.setPort(this.getTls().getPort());
+            secure.setTls(true);
+            list.add(secure);
+        }
+        return list;
+    }
+
+    /**
+     * Returns the transport profile with the given name.
+     * @param name the profile name, null for the default profile
+     * @return the transport profile, the built-in defaults if no default
+     * profile is configured
+     */
+    public TransportProfile getTransportProfile(String name) {
+        TransportProfile profile = this.getTransportProfiles().get(name == null ? DEFAULT_TRANSPORT_PROFILE : name);
+        if (profile != null)
+            return profile;
+        if (name != null && !DEFAULT_TRANSPORT_PROFILE.equals(name))
+            throw new IllegalArgumentException("unknown transport profile: " + name);
+        return DEFAULT_TRANSPORT_PROFILE_SETTINGS;
+    }
+
+    /**
+     * Check whether a listener accepts storage requests to the given AE
+     * Title. Listeners without called AE Title restrictions accept any
+     * configured AE Title. An unknown listener accepts nothing.
+     * @param listenerName the name of the listening connection
+     * @param calledAET the local AE Title to which the storage request was made
+     * @return whether the listener accepts requests to the AE Title
+     */
+    public boolean isAcceptedOnListener(String listenerName, String calledAET) {
+        Listener listener = this.effectiveListenersByName().get(listenerName);
+        return listener != null
+          && (listener.getCalledAetitles().isEmpty() || listener.getCalledAetitles().contains(calledAET));
+    }
+
     /**
      * Check whether the application is configured for a given combination of
      * calling/called AE Titles.
@@ -116,6 +307,63 @@ public class Config {
         return Optional.ofNullable(this.getAetitlePairs().get(calledAET)).map(x -> x.containsKey(callingAET)).orElse(false);
     }
 
+    /**
+     * Find the processing priority rule for a completed study. Returns a rule
+     * for the default class (priority 0) if no configured rule matches.
+     * @param study the completed study
+     * @return the first matching priority rule
+     */
+    public PriorityRule getPriorityRule(CompletedStudy study) {
+        return this.getProcessingPriorities().stream().filter(rule -> rule.matches(study)).findFirst()
+          .orElse(DEFAULT_PRIORITY_RULE);
+    }
+
+    /**
+     * Returns the weight of a calling AE Title when sharing processing with
+     * other calling AE Titles.
+     * @param callingAET the remote AE Title that sent the study
+     * @return the configured weight, 1 if none is configured
+     */
+    public int getCallingAetitleWeight(String callingAET) {
+        return Math.max(1, this.getCallingAetitleWeights().getOrDefault(callingAET, 1));
+    }
+
+    /**
+     * Returns the worker thread and queue settings for a study processing
+     * pipeline stage.
+     * @param stage the stage name
+     * @return the configured settings, or the defaults (1 thread, queue of 2)
+     */
+    public StageConfig getPipelineStage(String stage) {
+        return this.getPipelineStages().getOrDefault(stage, DEFAULT_STAGE_CONFIG);
+    }
+
+    /**
+     * Find the upload rate schedule for a time of day.
+     * @param time the time of day
+     * @return the first schedule containing the given time, or null if none
+     */
+    public RateSchedule getUploadRateSchedule(LocalTime time) {
+        return this.getUploadRateSchedules().stream().filter(schedule -> schedule.contains(time)).findFirst().orElse(null);
+    }
+
+    /**
+     * Returns a dcm4che {@link org.dcm4che3.net.Connection} for sending
+     * storage commitment results to the given remote AE Title on a new
+     * association.
+     * @param callingAET the remote AE Title that requested storage commitment
+     * @return the remote connection, or null if none is configured
+     */
+    public Connection getStorageCommitmentConnection(String callingAET) {
+        String destination = this.getStorageCommitmentDestinations().get(callingAET);
+        if (destination == null)
+            return null;
+        int colon = destination.lastIndexOf(':');
+        if (colon <= 0)
+            throw new IllegalArgumentException("invalid storage commitment destination: " + destination);
+        return new Connection(null, destination.substring(0, colon), Integer.parseInt(destination.substring(colon + 1)));
+    }
+
     /**
      * This method returns a {@link java.nio.file.Path} for the filesystem
      * workspace used by this application.
@@ -145,6 +393,15 @@ public class Config {
         return this.getStorageDirPath().resolve(ZIP_DIR);
     }
 
+    /**
+     * This method returns a {@link java.nio.file.Path} for the directory
+     * holding the records of finalized studies.
+     * @return the directory for records of finalized studies
+     */
+    public Path getFinalizedDirPath() {
+        return Paths.get(getFinalizedStudyDir());
+    }
+
     /**
      * This method checks whether the given {@link java.nio.file.Path}
      * represents a filesystem workspace directory used for gathering dicom
@@ -175,6 +432,174 @@ public class Config {
             LOG.error("error comparing path '" + path + "' to zip directory", e);
             return false;
         }
+        try {
+            if (getFinalizedStudyDir() != null && Files.exists(this.getFinalizedDirPath())
+              && Files.isSameFile(this.getFinalizedDirPath(), path))
+                return false;
+        } catch (IOException e) {
+            LOG.error("error comparing path '" + path + "' to finalized directory", e);
+            return false;
+        }
         return true;
     }
+
+    private static final PriorityRule DEFAULT_PRIORITY_RULE = new PriorityRule();
+    private static final StageConfig DEFAULT_STAGE_CONFIG = new StageConfig();
+    private static final TransportProfile DEFAULT_TRANSPORT_PROFILE_SETTINGS = new TransportProfile();
+
+    /**
+     * Rule assigning completed studies to a named priority class. Unset
+     * criteria match any study. Classes with a higher priority are always
+     * processed first.
+     */
+    @Getter
+    @Setter
+    public static class PriorityRule {
+        private String name = DEFAULT_PRIORITY_CLASS;
+        private int priority;
+        private String calledAet;
+        private String callingAet;
+        private String modality;
+        // Study size bounds (bytes)
+        private Long minStudySize;
+        private Long maxStudySize;
+
+        /**
+         * Check whether a completed study matches all the criteria set on
+         * this rule.
+         * @param study the completed study
+         * @return whether the study belongs to this rule's priority class
+         */
+        public boolean matches(CompletedStudy study) {
+            return (calledAet == null || calledAet.equals(study.getCalledAET()))
+              && (callingAet == null || callingAet.equals(study.getCallingAET()))
+              && (modality == null || modality.equalsIgnoreCase(study.getModality()))
+              && (minStudySize == null || study.getSize() >= minStudySize)
+              && (maxStudySize == null || study.getSize() <= maxStudySize);
+        }
+    }
+
+    /**
+     * Worker threads and queue capacity of a study processing pipeline stage.
+     */
+    @Getter
+    @Setter
+    public static class StageConfig {
+        private int threads = 1;
+        private int queueCapacity = 2;
+        // Studies in progress at once, for stages running asynchronous work
+        // (upload); other stages have one study in progress per thread
+        private int maxInFlight = 1;
+    }
+
+    /**
+     * Upload rate limit for a time-of-day window. Windows where 'from' is
+     * after 'to' wrap around midnight.
+     */
+    @Getter
+    @Setter
+    public static class RateSchedule {
+        // Window start and end (ISO local time), like 08:00 and 18:00
+        private String from;
+        private String to;
+        // Upload rate limit within the window (bytes per second, 0 for unlimited)
+        private long rate;
+
+        /**
+         * Check whether a time of day falls within this schedule's window.
+         * @param time the time of day
+         * @return whether the time is in [from, to)
+         */
+        public boolean contains(LocalTime time) {
+            if (from == null || to == null)
+                return false;
+            LocalTime start = LocalTime.parse(from);
+            LocalTime end = LocalTime.parse(to);
+            if (start.isBefore(end))
+                return !time.isBefore(start) && time.isBefore(end);
+            return !time.isBefore(start) || time.isBefore(end);
+        }
+    }
+
+    /**
+     * Upload rate limit applied while ingest throughput is high.
+     */
+    @Getter
+    @Setter
+    public static class IngestThrottle {
+        // Ingest throughput above which uploads are throttled (bytes per second)
+        private long ingestThreshold;
+        // Upload rate limit while throttled (bytes per second)
+        private long rate;
+    }
+
+    /**
+     * DICOM TLS listener settings.
+     */
+    @Getter
+    @Setter
+    public static class Tls {
+        private boolean enabled;
+        // The port to listen on for incoming TLS connections
+        private int port = 2762;
+        // Key store holding the server certificate and private key
+        private String keyStore;
+        private String keyStoreType = "JKS";
+        private String keyStorePassword;
+        // Private key password, defaults to the key store password
+        private String keyPassword;
+        // Trust store for verifying client certificates, defaults to the JVM
+        // trust store
+        private String trustStore;
+        private String trustStoreType = "JKS";
+        private String trustStorePassword;
+        // Whether clients must present a certificate
+        private boolean needClientAuth = true;
+        // Enabled cipher suites (at least one, defaults to the forward secret
+        // AES-GCM suites of the DICOM BCP 195 TLS profile) and protocols
+        // (empty for the JVM defaults)
+        private List<String> cipherSuites = new ArrayList<>(Arrays.asList(
+          "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384"));
+        private List<String> protocols = new ArrayList<>();
+        // Number of TLS sessions cached for resumption (0 for unlimited)
+        private int sessionCacheSize = 1000;
+        // How long cached TLS sessions can be resumed (seconds)
+        private int sessionTimeout = 3600;
+    }
+
+    /**
+     * Transport settings of a listening connection.
+     */
+    @Getter
+    @Setter
+    public static class TransportProfile {
+        // Maximum PDU lengths (bytes)
+        private int receivePduLength = Connection.DEF_MAX_PDU_LENGTH;
+        private int sendPduLength = Connection.DEF_MAX_PDU_LENGTH;
+        // Socket buffer sizes (bytes, 0 for the OS default)
+        private int sendBufferSize;
+        private int receiveBufferSize;
+        // Maximum number of pending incoming connections
+        private int backlog = Connection.DEF_BACKLOG;
+        private boolean tcpNoDelay = true;
+    }
+
+    /**
+     * A listening connection for incoming associations.
+     */
+    @Getter
+    @Setter
+    public static class Listener {
+        private String name;
+        private int port;
+        // Local address to listen on, all interfaces if not set
+        private String bindAddress;
+        // Transport profile name, the default profile if not set
+        private String profile;
+        // Whether the listener uses the TLS settings
+        private boolean tls;
+        // Called AE Titles accepted on this listener, any configured AE Title
+        // if empty
+        private List<String> calledAetitles = new ArrayList<>();
+    }
 }
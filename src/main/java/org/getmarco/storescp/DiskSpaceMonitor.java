@@ -0,0 +1,137 @@
+package org.getmarco.storescp;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class runs a scheduled check of the free space on the volume holding
+ * the filesystem workspace. Once disk usage goes above the high watermark, new
+ * incoming transfers are refused (and study processing drains the largest
+ * studies first) until usage drops back below the low watermark. While
+ * overloaded, the registered overload listeners run on every check, so
+ * incoming studies are completed right away instead of holding disk space
+ * until their wait time runs out.
+ *
+ * The check runs on its own thread rather than the shared Spring scheduler
+ * thread, so slow scheduled tasks can't delay refusing transfers.
+ */
+@Component
+public class DiskSpaceMonitor {
+    private static final Logger LOG = LoggerFactory.getLogger(DiskSpaceMonitor.class);
+
+    @Autowired
+    private Config config;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /** Interval between disk space checks (milliseconds) */
+    public static final long CHECK_INTERVAL = 1000;
+
+    private final List<Runnable> overloadListeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService executor;
+    private volatile boolean overloaded;
+    private volatile double usedPercent;
+
+    @PostConstruct
+    public void start() {
+        double high = config.getDiskHighWatermark();
+        double low = config.getDiskLowWatermark();
+        if (high <= 0 || high > 100 || low <= 0 || low > high)
+            throw new IllegalArgumentException("invalid disk watermarks, low: " + low + ", high: " + high);
+        Gauge.builder("storescp.disk.used", this, x -> x.usedPercent)
+          .description("disk usage of the storage directory volume")
+          .baseUnit("percent").register(meterRegistry);
+        Gauge.builder("storescp.disk.overloaded", this, x -> x.overloaded ? 1 : 0)
+          .description("whether incoming transfers are refused for lack of disk space")
+          .register(meterRegistry);
+        executor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("disk-monitor-"));
+        executor.scheduleWithFixedDelay(this::run, 0, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    /**
+     * Register a task to run on every check while disk usage is above the
+     * high watermark.
+     * @param listener the task
+     */
+    public void addOverloadListener(Runnable listener) {
+        overloadListeners.add(listener);
+    }
+
+    // A scheduled task that throws isn't run again, so errors are logged
+    private void run() {
+        try {
+            checkDiskSpace();
+            if (overloaded)
+                overloadListeners.forEach(Runnable::run);
+        } catch (RuntimeException e) {
+            LOG.error("unable to check disk space", e);
+        }
+    }
+
+    /**
+     * Check the disk usage of the filesystem workspace volume against the
+     * configured watermarks.
+     */
+    public void checkDiskSpace() {
+        Path storageDir = config.getStorageDirPath();
+        if (!Files.exists(storageDir))
+            return;
+        double usedPercent;
+        try {
+            FileStore store = Files.getFileStore(storageDir);
+            long total = store.getTotalSpace();
+            if (total <= 0)
+                return;
+            usedPercent = 100.0 * (total - store.getUsableSpace()) / total;
+        } catch (IOException e) {
+            LOG.error("unable to check free space of storage directory: " + storageDir, e);
+            return;
+        }
+        update(usedPercent);
+    }
+
+    // Apply the watermarks to the current disk usage: overloaded at or above
+    // the high watermark, and again accepting below the low watermark
+    void update(double usedPercent) {
+        this.usedPercent = usedPercent;
+        if (!overloaded && usedPercent >= config.getDiskHighWatermark()) {
+            overloaded = true;
+            LOG.warn("disk usage {}% above high watermark, refusing incoming transfers", String.format("%.1f", usedPercent));
+        } else if (overloaded && usedPercent < config.getDiskLowWatermark()) {
+            overloaded = false;
+            LOG.info("disk usage {}% below low watermark, accepting incoming transfers", String.format("%.1f", usedPercent));
+        }
+    }
+
+    /**
+     * Check whether disk usage has gone above the high watermark, and not yet
+     * back below the low watermark.
+     * @return whether incoming transfers should be refused
+     */
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+}
@@ -0,0 +1,44 @@
+package org.getmarco.storescp;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Custom spring boot actuator (management) endpoint class to start a graceful
+ * drain before shutdown (POST /actuator/drain), and to follow its progress
+ * (GET /actuator/drain). Since a drain exits the application, the endpoint
+ * is disabled by default like the shutdown endpoint, and must be enabled with
+ * management.endpoint.drain.enabled=true.
+ */
+@Component
+@Endpoint(id = "drain", enableByDefault = false)
+public class DrainEndpoint {
+
+    @Autowired
+    private GracefulDrain drain;
+
+    /**
+     * Produces display information about the progress of the drain
+     * @return mapping of display information
+     */
+    @ReadOperation
+    public Map<String, Object> status() {
+        return drain.describe();
+    }
+
+    /**
+     * Start draining the application, which exits when done. Calling this
+     * again while draining just reports progress.
+     * @return mapping of display information
+     */
+    @WriteOperation
+    public Map<String, Object> start() {
+        drain.start();
+        return drain.describe();
+    }
+}
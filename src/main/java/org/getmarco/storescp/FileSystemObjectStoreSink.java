@@ -0,0 +1,158 @@
+package org.getmarco.storescp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link ObjectStoreSink} storing objects as files below a local directory,
+ * for testing and benchmarking study processing without AWS. Object keys are
+ * used as relative paths. Files are copied with asynchronous file channels, so
+ * like the S3 sink no thread is held per upload. Like the S3 sink, every chunk
+ * takes its bytes from the shared {@link UploadRateLimiter} before it is
+ * written.
+ */
+public class FileSystemObjectStoreSink implements ObjectStoreSink {
+    private static final Logger LOG = LoggerFactory.getLogger(FileSystemObjectStoreSink.class);
+
+    /** Size of the buffer used for copying each file */
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path root;
+    private final UploadRateLimiter rateLimiter;
+
+    public FileSystemObjectStoreSink(Path root, UploadRateLimiter rateLimiter) {
+        this.root = Objects.requireNonNull(root, "null object store directory");
+        this.rateLimiter = Objects.requireNonNull(rateLimiter, "null upload rate limiter");
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String key, Path file, byte[] contentMd5) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Path dest = root.resolve(key).normalize();
+        if (!dest.startsWith(root.normalize())) {
+            result.completeExceptionally(new IllegalArgumentException("invalid object key: " + key));
+            return result;
+        }
+        // Copy to a temp file next to the destination, and move it into place
+        // when complete so readers never see a partial object
+        Path temp = dest.resolveSibling(UUID.randomUUID().toString() + Config.PART_EXT);
+        AsynchronousFileChannel in = null;
+        try {
+            Files.createDirectories(dest.getParent());
+            in = AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+            AsynchronousFileChannel out = AsynchronousFileChannel.open(temp, StandardOpenOption.WRITE,
+              StandardOpenOption.CREATE_NEW);
+            new Copy(in, out, rateLimiter, result).read(0);
+        } catch (IOException e) {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+            }
+            result.completeExceptionally(e);
+        }
+        return result.thenRun(() -> {
+            try {
+                Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).whenComplete((x, error) -> {
+            if (error != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    LOG.warn("unable to delete temp file: {}", temp);
+                }
+            }
+        });
+    }
+
+    // Copy between two asynchronous file channels, chaining a write after
+    // each read until the end of the source file. Each chunk is written once
+    // the rate limiter lets it go.
+    private static class Copy implements CompletionHandler<Integer, Long> {
+        private final AsynchronousFileChannel in;
+        private final AsynchronousFileChannel out;
+        private final UploadRateLimiter rateLimiter;
+        private final CompletableFuture<Void> result;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        Copy(AsynchronousFileChannel in, AsynchronousFileChannel out, UploadRateLimiter rateLimiter,
+          CompletableFuture<Void> result) {
+            this.in = in;
+            this.out = out;
+            this.rateLimiter = rateLimiter;
+            this.result = result;
+        }
+
+        void read(long position) {
+            buffer.clear();
+            in.read(buffer, position, position, this);
+        }
+
+        @Override
+        public void completed(Integer count, Long position) {
+            if (count < 0) {
+                close(null);
+                return;
+            }
+            buffer.flip();
+            rateLimiter.reserve(count).thenRun(() -> write(position, position + count));
+        }
+
+        // Write the buffer contents at the given position, then read the
+        // next chunk at the given source position.
+        private void write(long position, long nextPosition) {
+            out.write(buffer, position, position, new CompletionHandler<Integer, Long>() {
+                @Override
+                public void completed(Integer count, Long written) {
+                    if (buffer.hasRemaining())
+                        write(written + count, nextPosition);
+                    else
+                        read(nextPosition);
+                }
+
+                @Override
+                public void failed(Throwable error, Long written) {
+                    close(error);
+                }
+            });
+        }
+
+        @Override
+        public void failed(Throwable error, Long position) {
+            close(error);
+        }
+
+        private void close(Throwable error) {
+            for (AsynchronousFileChannel channel : new AsynchronousFileChannel[] {in, out}) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    if (error == null)
+                        error = e;
+                }
+            }
+            if (error == null)
+                result.complete(null);
+            else
+                result.completeExceptionally(error);
+        }
+    }
+}
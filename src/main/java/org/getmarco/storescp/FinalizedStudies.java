@@ -0,0 +1,311 @@
+package org.getmarco.storescp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class keeps the records of finalized studies, by called and calling AE
+ * Title and study UID, so instances arriving after a study was finalized can
+ * be uploaded as a delta
+ * archive instead of as an unrelated new study. An archive is reserved in the
+ * study's record when the study is parsed, before it is uploaded, so a late
+ * instance finalized while an earlier archive is still in the pipeline
+ * already goes to a delta archive of it. Reservations are serialized by the
+ * records lock, so the archives of a study always form one chain.
+ *
+ * Each record is persisted as a file in the configured finalized study
+ * directory, outside the filesystem workspace so it survives clearing the
+ * workspace on start, like:
+ * &lt;finalizedStudyDir&gt;/&lt;called AE title&gt;/&lt;calling AE title&gt;/&lt;study UID&gt;.json
+ * Records are dropped after the configured retention time.
+ */
+@Component
+public class FinalizedStudies {
+    private static final Logger LOG = LoggerFactory.getLogger(FinalizedStudies.class);
+
+    /** File extension for study record files */
+    public static final String JSON_EXT = ".json";
+
+    @Autowired
+    private Config config;
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final Lock lock = new ReentrantLock();
+    // Records by AE Title pair and study UID
+    private final Map<String, FinalizedStudy> studies = new HashMap<>();
+    // Record key of each archived instance, by AE Title pair and instance UID
+    private final Map<String, String> instanceStudies = new HashMap<>();
+    // Records are loaded on first use, after the workspace has been prepared
+    private boolean loaded;
+
+    /**
+     * The instances a study's new archive holds, and how it is linked to the
+     * study's earlier archives.
+     */
+    @Value
+    public static class Reservation {
+        // Id of the study's first archive if the new archive is a delta, else null
+        String baseArchiveId;
+        // Instances not in an earlier archive of the study, to archive now
+        List<MetaData.Instance> newInstances;
+        // All instances of the study: those of the earlier archives, followed
+        // by the new ones
+        List<MetaData.Instance> allInstances;
+    }
+
+    /**
+     * Look up the record of a study finalized for an AE Title pair.
+     * @param calledAET the called AE Title
+     * @param callingAET the calling AE Title
+     * @param studyUid the study UID
+     * @return the record, if the study has been finalized before
+     */
+    public Optional<FinalizedStudy> get(String calledAET, String callingAET, String studyUid) {
+        lock.lock();
+        try {
+            load();
+            return Optional.ofNullable(studies.get(key(calledAET, callingAET, studyUid)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check whether an instance received from an AE Title pair is held by an
+     * archive of a finalized study, uploaded or still being uploaded.
+     * @param calledAET the called AE Title
+     * @param callingAET the calling AE Title
+     * @param iuid the instance UID
+     * @return whether the instance is archived
+     */
+    public boolean isArchived(String calledAET, String callingAET, String iuid) {
+        lock.lock();
+        try {
+            load();
+            return instanceStudies.containsKey(key(calledAET, callingAET, iuid));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserve a new archive of a study for the given instances, dropping
+     * those already in an earlier archive of the study received from the same
+     * AE Title pair, uploaded or still pending. The
+     * reservation is released by {@link #uploaded} or {@link #failed}. No
+     * archive is reserved if all instances are in earlier archives.
+     * @param study the completed study, its id being the new archive's id
+     * @param instances the received instances of the study
+     * @return the reservation, with no new instances if nothing is reserved
+     */
+    public Reservation reserve(CompletedStudy study, List<MetaData.Instance> instances) {
+        lock.lock();
+        try {
+            load();
+            FinalizedStudy previous = studies.get(key(study));
+            if (previous == null) {
+                FinalizedStudy reserved = new FinalizedStudy(study.getStudyUid(), study.getCalledAET(),
+                  study.getCallingAET(), study.getId(), Collections.emptyList(),
+                  Collections.singletonList(study.getId()), instances, System.currentTimeMillis());
+                put(reserved);
+                write(reserved);
+                return new Reservation(null, instances, instances);
+            }
+            Set<String> archived = previous.getInstanceUids();
+            List<MetaData.Instance> newInstances = instances.stream()
+              .filter(instance -> !archived.contains(instance.getSopInstanceUid())).collect(Collectors.toList());
+            if (newInstances.isEmpty())
+                return new Reservation(previous.getArchiveId(), newInstances, previous.getInstances());
+            FinalizedStudy reserved = previous.withDelta(study.getId(), newInstances, System.currentTimeMillis());
+            put(reserved);
+            write(reserved);
+            return new Reservation(previous.getArchiveId(), newInstances, reserved.getInstances());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record the upload of a reserved archive.
+     * @param study the completed study, its id being the uploaded archive's id
+     */
+    public void uploaded(CompletedStudy study) {
+        update(key(study), record -> record.withUploaded(study.getId(), System.currentTimeMillis()));
+    }
+
+    /**
+     * Release a reserved archive that failed to be created or uploaded, so
+     * its instances are archived again if they arrive again.
+     * @param study the completed study, its id being the failed archive's id
+     */
+    public void failed(CompletedStudy study) {
+        update(key(study), record -> record.withoutArchive(study.getId(), System.currentTimeMillis()));
+    }
+
+    /**
+     * Drop the records of studies last changed longer ago than the
+     * configured retention time, unless an upload is pending.
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void purge() {
+        long cutoff = System.currentTimeMillis() - config.getFinalizedStudyRetention();
+        lock.lock();
+        try {
+            if (!loaded)
+                return;
+            for (Iterator<FinalizedStudy> it = studies.values().iterator(); it.hasNext();) {
+                FinalizedStudy study = it.next();
+                if (study.getUpdated() >= cutoff || study.isPending())
+                    continue;
+                it.remove();
+                removeInstances(study);
+                delete(study);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Add or replace a record, holding the lock
+    private void put(FinalizedStudy study) {
+        String key = key(study.getCalledAET(), study.getCallingAET(), study.getStudyUid());
+        FinalizedStudy previous = studies.put(key, study);
+        if (previous != null)
+            removeInstances(previous);
+        for (String iuid : study.getInstanceUids())
+            instanceStudies.put(key(study.getCalledAET(), study.getCallingAET(), iuid), key);
+    }
+
+    // Drop the instances of a record from the instance index, holding the lock
+    private void removeInstances(FinalizedStudy study) {
+        for (String iuid : study.getInstanceUids())
+            instanceStudies.remove(key(study.getCalledAET(), study.getCallingAET(), iuid));
+    }
+
+    // Replace a record, or drop it if the update returns null
+    private void update(String key, UnaryOperator<FinalizedStudy> update) {
+        lock.lock();
+        try {
+            load();
+            FinalizedStudy previous = studies.get(key);
+            if (previous == null)
+                return;
+            FinalizedStudy updated = update.apply(previous);
+            if (updated == null) {
+                studies.remove(key);
+                removeInstances(previous);
+                delete(previous);
+                return;
+            }
+            put(updated);
+            write(updated);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Load the persisted records, holding the lock
+    private void load() {
+        if (loaded)
+            return;
+        loaded = true;
+        Path finalizedDir = config.getFinalizedDirPath();
+        if (!Files.isDirectory(finalizedDir))
+            return;
+        List<Path> recordFiles;
+        try (Stream<Path> files = Files.find(finalizedDir, 3,
+          (path, attributes) -> attributes.isRegularFile() && path.getFileName().toString().endsWith(JSON_EXT))) {
+            recordFiles = files.collect(Collectors.toList());
+        } catch (IOException e) {
+            LOG.error("unable to list finalized directory: " + finalizedDir, e);
+            return;
+        }
+        for (Path recordFile : recordFiles) {
+            try {
+                FinalizedStudy study = objectMapper.readValue(recordFile.toFile(), FinalizedStudy.class);
+                if (study.isPending()) {
+                    study = releasePending(study);
+                    if (study == null) {
+                        Files.delete(recordFile);
+                        continue;
+                    }
+                    write(study);
+                }
+                put(study);
+            } catch (IOException e) {
+                LOG.error("unable to read study record: " + recordFile, e);
+            }
+        }
+        LOG.info("loaded {} records of finalized studies", studies.size());
+    }
+
+    // Release the archives pending when the application stopped, they never
+    // finished uploading
+    private static FinalizedStudy releasePending(FinalizedStudy study) {
+        for (String archiveId : study.getPendingArchiveIds()) {
+            study = study.withoutArchive(archiveId, study.getUpdated());
+            if (study == null)
+                return null;
+        }
+        return study;
+    }
+
+    // Persist a record, replacing the previous one atomically. A record that
+    // can't be written stays in memory until restart.
+    private void write(FinalizedStudy study) {
+        Path recordFile = recordFile(study);
+        Path temp = recordFile.resolveSibling(recordFile.getFileName().toString() + Config.PART_EXT);
+        try {
+            Files.createDirectories(recordFile.getParent());
+            objectMapper.writeValue(temp.toFile(), study);
+            Files.move(temp, recordFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.error("unable to write study record: " + recordFile, e);
+        }
+    }
+
+    private void delete(FinalizedStudy study) {
+        try {
+            Files.deleteIfExists(recordFile(study));
+        } catch (IOException e) {
+            LOG.warn("unable to delete record of study: {}", study.getStudyUid());
+        }
+    }
+
+    private Path recordFile(FinalizedStudy study) {
+        return config.getFinalizedDirPath().resolve(study.getCalledAET()).resolve(study.getCallingAET())
+          .resolve(study.getStudyUid() + JSON_EXT);
+    }
+
+    private static String key(CompletedStudy study) {
+        return key(study.getCalledAET(), study.getCallingAET(), study.getStudyUid());
+    }
+
+    // Key of a study or instance received from an AE Title pair
+    private static String key(String calledAET, String callingAET, String uid) {
+        return calledAET + '\\' + callingAET + '\\' + uid;
+    }
+}
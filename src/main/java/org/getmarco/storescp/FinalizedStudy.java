@@ -0,0 +1,125 @@
+package org.getmarco.storescp;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Simple value class recording a study that has been finalized: the archives
+ * created for it, which of them are still being uploaded, and the instances
+ * they hold. Serialized to a record file using the Jackson
+ * {@link com.fasterxml.jackson.databind.ObjectMapper ObjectMapper}.
+ */
+@Value
+public class FinalizedStudy {
+    String studyUid;
+    String calledAET;
+    String callingAET;
+    // Id of the study's first archive
+    String archiveId;
+    // Ids of the delta archives created for late arriving instances
+    List<String> deltaArchiveIds;
+    // Ids of the archives not uploaded yet
+    List<String> pendingArchiveIds;
+    List<MetaData.Instance> instances;
+    // Time of the last change (milliseconds)
+    long updated;
+
+    @JsonCreator
+    public FinalizedStudy(@JsonProperty("studyUid") String studyUid, @JsonProperty("calledAET") String calledAET,
+      @JsonProperty("callingAET") String callingAET, @JsonProperty("archiveId") String archiveId,
+      @JsonProperty("deltaArchiveIds") List<String> deltaArchiveIds,
+      @JsonProperty("pendingArchiveIds") List<String> pendingArchiveIds,
+      @JsonProperty("instances") List<MetaData.Instance> instances, @JsonProperty("updated") long updated) {
+        this.studyUid = studyUid;
+        this.calledAET = calledAET;
+        this.callingAET = callingAET;
+        this.archiveId = archiveId;
+        this.deltaArchiveIds = deltaArchiveIds == null ? Collections.emptyList() : deltaArchiveIds;
+        this.pendingArchiveIds = pendingArchiveIds == null ? Collections.emptyList() : pendingArchiveIds;
+        this.instances = instances == null ? Collections.emptyList() : instances;
+        this.updated = updated;
+    }
+
+    /**
+     * Returns the UIDs of the instances archived for this study, uploaded or
+     * still being uploaded.
+     * @return the archived instance UIDs
+     */
+    @JsonIgnore
+    public Set<String> getInstanceUids() {
+        return instances.stream().map(MetaData.Instance::getSopInstanceUid).collect(Collectors.toSet());
+    }
+
+    /**
+     * Check whether any archive of this study is still being uploaded.
+     * @return whether an upload is pending
+     */
+    @JsonIgnore
+    public boolean isPending() {
+        return !pendingArchiveIds.isEmpty();
+    }
+
+    /**
+     * Returns a copy of this record with a pending delta archive added.
+     * @param deltaArchiveId the id of the delta archive
+     * @param deltaInstances the instances in the delta archive
+     * @param time the time of the change (milliseconds)
+     * @return the updated record
+     */
+    public FinalizedStudy withDelta(String deltaArchiveId, List<MetaData.Instance> deltaInstances, long time) {
+        List<String> archiveIds = new ArrayList<>(deltaArchiveIds);
+        archiveIds.add(deltaArchiveId);
+        List<String> pending = new ArrayList<>(pendingArchiveIds);
+        pending.add(deltaArchiveId);
+        List<MetaData.Instance> allInstances = new ArrayList<>(instances);
+        allInstances.addAll(deltaInstances);
+        return new FinalizedStudy(studyUid, calledAET, callingAET, archiveId, archiveIds, pending, allInstances,
+          time);
+    }
+
+    /**
+     * Returns a copy of this record with an archive no longer pending.
+     * @param uploadedArchiveId the id of the uploaded archive
+     * @param time the time of the upload (milliseconds)
+     * @return the updated record
+     */
+    public FinalizedStudy withUploaded(String uploadedArchiveId, long time) {
+        List<String> pending = new ArrayList<>(pendingArchiveIds);
+        pending.remove(uploadedArchiveId);
+        return new FinalizedStudy(studyUid, calledAET, callingAET, archiveId, deltaArchiveIds, pending, instances,
+          time);
+    }
+
+    /**
+     * Returns a copy of this record without the instances of an archive that
+     * failed to upload, so they are archived again if they arrive again. If
+     * the study's first archive failed, the whole record is dropped, so later
+     * delta archives don't refer to an archive that was never uploaded, and
+     * the next archive of the study is a full one.
+     * @param failedArchiveId the id of the failed archive
+     * @param time the time of the failure (milliseconds)
+     * @return the updated record, or null if the first archive failed or no
+     * instances of the study are left
+     */
+    public FinalizedStudy withoutArchive(String failedArchiveId, long time) {
+        if (failedArchiveId.equals(archiveId))
+            return null;
+        List<MetaData.Instance> remaining = instances.stream()
+          .filter(instance -> !failedArchiveId.equals(instance.getArchiveId())).collect(Collectors.toList());
+        if (remaining.isEmpty())
+            return null;
+        List<String> archiveIds = new ArrayList<>(deltaArchiveIds);
+        archiveIds.remove(failedArchiveId);
+        List<String> pending = new ArrayList<>(pendingArchiveIds);
+        pending.remove(failedArchiveId);
+        return new FinalizedStudy(studyUid, calledAET, callingAET, archiveId, archiveIds, pending, remaining, time);
+    }
+}
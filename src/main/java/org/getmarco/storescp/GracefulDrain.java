@@ -0,0 +1,183 @@
+package org.getmarco.storescp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class drains the application before shutdown, so a rolling restart
+ * neither drops transfers nor leaves studies to be resent: it stops accepting
+ * new associations, waits for open associations to finish, completes all
+ * incoming studies without waiting out their study wait time, reports
+ * incomplete storage commitment requests as failed, and waits for the
+ * processing queue, pipeline and pending storage commitments to empty
+ * before exiting through the {@link Finisher}. If the drain timeout passes
+ * first, the application exits anyway with a non-zero exit code.
+ *
+ * Studies that failed processing are left in the processing work area, where
+ * clearing the storage directory on the next start would delete them. They are
+ * reported when the drain finishes, and the application exits with a non-zero
+ * exit code so they aren't missed.
+ */
+@Component
+public class GracefulDrain {
+    private static final Logger LOG = LoggerFactory.getLogger(GracefulDrain.class);
+
+    /** Interval (milliseconds) between drain progress checks */
+    public static final long POLL_INTERVAL = 1000;
+    /** Number of progress checks between progress log messages */
+    public static final int LOG_INTERVAL = 10;
+
+    public enum Phase {
+        RUNNING, WAITING_FOR_ASSOCIATIONS, COMPLETING_STUDIES, WAITING_FOR_PROCESSING, FINISHED, TIMED_OUT
+    }
+
+    @Autowired
+    private Config config;
+    @Autowired
+    private Starter starter;
+    @Autowired
+    private StudyCompletionCheck completionCheck;
+    @Autowired
+    private StudyScheduler scheduler;
+    @Autowired
+    private StudyProcessor processor;
+    @Autowired
+    private StgCmtSCP stgCmtSCP;
+    @Autowired
+    private Finisher finisher;
+
+    private volatile Phase phase = Phase.RUNNING;
+    private volatile long started;
+    private volatile long deadline;
+    private volatile int completedStudies;
+    private volatile List<String> failedStudies = Collections.emptyList();
+
+    /**
+     * Start draining, unless a drain is already in progress. The drain runs
+     * on its own thread, and ends with the application exiting.
+     * @return whether this call started the drain
+     */
+    public synchronized boolean start() {
+        if (phase != Phase.RUNNING)
+            return false;
+        started = System.currentTimeMillis();
+        deadline = started + config.getDrainTimeout();
+        phase = Phase.WAITING_FOR_ASSOCIATIONS;
+        LOG.info("draining, timeout: {}ms", config.getDrainTimeout());
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("scp-drain-");
+        // Daemon, so closing the application context from this thread doesn't
+        // wait for it
+        threadFactory.setDaemon(true);
+        threadFactory.newThread(this::drain).start();
+        return true;
+    }
+
+    /**
+     * Produces display information about the progress of the drain.
+     * @return mapping of display information
+     */
+    public Map<String, Object> describe() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("phase", phase);
+        if (phase != Phase.RUNNING) {
+            map.put("started", Instant.ofEpochMilli(started).toString());
+            map.put("elapsed", System.currentTimeMillis() - started);
+            map.put("remaining", Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        map.put("openAssociations", starter.getOpenAssociationCount());
+        map.put("completedStudies", completedStudies);
+        map.put("queuedStudies", scheduler.getQueuedCount());
+        map.put("processingStudies", processor.getInProgressCount());
+        map.put("pendingCommitments", stgCmtSCP.getPendingCount());
+        map.put("failedStudies", failedStudies);
+        return map;
+    }
+
+    private void drain() {
+        try {
+            starter.stopListening();
+            LOG.info("stopped accepting associations, waiting for {} open associations",
+              starter.getOpenAssociationCount());
+            if (!await(starter::getOpenAssociationCount))
+                return;
+
+            phase = Phase.COMPLETING_STUDIES;
+            completedStudies = completionCheck.completeAll();
+            LOG.info("completed {} incoming studies", completedStudies);
+            // No more instances can arrive, so incomplete storage commitment
+            // requests can only fail
+            stgCmtSCP.failIncomplete();
+
+            phase = Phase.WAITING_FOR_PROCESSING;
+            if (!await(() -> scheduler.getQueuedCount() + processor.getInProgressCount()
+              + stgCmtSCP.getPendingCount()))
+                return;
+
+            phase = Phase.FINISHED;
+            failedStudies = leftoverStudies();
+            if (!failedStudies.isEmpty()) {
+                LOG.error("drained in {}ms, {} studies failed processing and are left in {}: {}",
+                  System.currentTimeMillis() - started, failedStudies.size(), config.getZipDirPath(), failedStudies);
+                finisher.finish(1);
+                return;
+            }
+            LOG.info("drained in {}ms", System.currentTimeMillis() - started);
+            finisher.finish();
+        } catch (InterruptedException e) {
+            LOG.warn("drain interrupted");
+        } catch (RuntimeException e) {
+            LOG.error("drain failed", e);
+            finisher.finish(1);
+        }
+    }
+
+    // Studies left in the processing work area once processing emptied, which
+    // failed processing: <storage dir>/zip/<uuid>
+    private List<String> leftoverStudies() {
+        Path zipDir = config.getZipDirPath();
+        try (Stream<Path> paths = Files.list(zipDir)) {
+            return paths.filter(Files::isDirectory).map(path -> path.getFileName().toString()).sorted()
+              .collect(Collectors.toList());
+        } catch (IOException e) {
+            LOG.error("unable to list processing work area: " + zipDir, e);
+            return Collections.emptyList();
+        }
+    }
+
+    // Wait for a count to drop to zero, logging progress on the way. A zero
+    // count has to be seen twice in a row, as a study passing between the
+    // scheduler and a pipeline stage can briefly be counted by neither. Exits
+    // the application if the drain timeout passes first.
+    private boolean await(IntSupplier remaining) throws InterruptedException {
+        int zeros = 0;
+        for (int checks = 0; zeros < 2; checks++) {
+            if (System.currentTimeMillis() >= deadline) {
+                phase = Phase.TIMED_OUT;
+                LOG.warn("drain timed out, exiting anyway: {}", describe());
+                finisher.finish(1);
+                return false;
+            }
+            if (checks % LOG_INTERVAL == 0)
+                LOG.info("drain progress: {}", describe());
+            zeros = remaining.getAsInt() == 0 ? zeros + 1 : 0;
+            if (zeros < 2)
+                Thread.sleep(POLL_INTERVAL);
+        }
+        return true;
+    }
+}
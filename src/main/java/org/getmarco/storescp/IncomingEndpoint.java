@@ -91,7 +91,7 @@ public class IncomingEndpoint {
 
     private long countStudyFiles(Path studyDir) {
         try (Stream<Path> studyFiles = Files.list(studyDir)) {
-            return studyFiles.count();
+            return studyFiles.filter(Util::isDicomFile).count();
         } catch(IOException e) {
             throw new RuntimeException(e);
         }
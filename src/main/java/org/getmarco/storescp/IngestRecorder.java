@@ -0,0 +1,121 @@
+package org.getmarco.storescp;
+
+import org.dcm4che3.net.Association;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Optional recorder of incoming dicom traffic, enabled by configuring an
+ * ingest trace file. Every stored instance and every closed association is
+ * written to an anonymized {@link IngestTrace}, which {@link TraceReplay} can
+ * feed back into a local instance to test changes against real traffic.
+ */
+@Component
+public class IngestRecorder {
+    private static final Logger LOG = LoggerFactory.getLogger(IngestRecorder.class);
+
+    // Association property marking associations whose close is recorded
+    private static final String RECORDED_PROPERTY = IngestRecorder.class.getName();
+
+    @Autowired
+    private Config config;
+
+    private final Lock lock = new ReentrantLock();
+    private volatile IngestTrace.Writer writer;
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!StringUtils.hasText(config.getIngestTraceFile()))
+            return;
+        writer = new IngestTrace.Writer(Paths.get(config.getIngestTraceFile()));
+        LOG.info("recording ingest trace to: {}", config.getIngestTraceFile());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (writer == null)
+            return;
+        lock.lock();
+        try {
+            writer.close();
+        } catch (IOException e) {
+            LOG.error("unable to close ingest trace", e);
+        } finally {
+            writer = null;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a stored instance, if recording is enabled.
+     * @param as the association the instance was received on
+     * @param arrival the time the C-STORE request was handed to the storage
+     * service ({@link System#nanoTime()}), see {@link IngestTrace}
+     * @param studyUid the study instance UID
+     * @param seriesUid the series instance UID
+     * @param cuid the SOP class UID
+     * @param tsuid the transfer syntax UID
+     * @param size the size of the stored dicom file (bytes)
+     */
+    public void instanceStored(Association as, long arrival, String studyUid, String seriesUid, String cuid,
+      String tsuid, long size) {
+        if (writer == null)
+            return;
+        if (as.getProperty(RECORDED_PROPERTY) == null) {
+            as.setProperty(RECORDED_PROPERTY, Boolean.TRUE);
+            as.addAssociationListener(this::associationClosed);
+        }
+        lock.lock();
+        try {
+            if (writer != null)
+                writer.instanceStored(arrival, as, as.getCallingAET(), as.getCalledAET(), studyUid, seriesUid, cuid,
+                  tsuid, size);
+        } catch (IOException e) {
+            LOG.error("unable to record ingest trace event", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write recorded events out to the trace file.
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void flush() {
+        if (writer == null)
+            return;
+        lock.lock();
+        try {
+            if (writer != null)
+                writer.flush();
+        } catch (IOException e) {
+            LOG.error("unable to flush ingest trace", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void associationClosed(Association as) {
+        long time = System.nanoTime();
+        lock.lock();
+        try {
+            if (writer != null)
+                writer.associationClosed(time, as);
+        } catch (IOException e) {
+            LOG.error("unable to record ingest trace event", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package org.getmarco.storescp;
+
+import lombok.Value;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary format of recorded ingest traffic, written by the
+ * {@link IngestRecorder} and read by {@link TraceReplay}.
+ *
+ * A trace is a header (magic, version, recording start time) followed by
+ * events. Each event starts with its type and the time since the previous
+ * event in microseconds. Numbers are variable length encoded. Associations,
+ * AE titles, studies and series are anonymized to small sequential ids, in
+ * order of first appearance; a missing (null) value gets an id of its own.
+ * Only the ids of recently seen AE titles, studies and series are remembered,
+ * so a study seen again after many others gets a new id. SOP class and
+ * transfer syntax UIDs are kept (they are needed for replay), written out the
+ * first time they appear and referenced by id after that.
+ *
+ * The time of a store event is the time the C-STORE request was handed to the
+ * storage service, once its command and the start of its data arrived, not
+ * the time of the association's first PDU. Replay reproduces when each
+ * instance started arriving; association setup is replayed as needed.
+ */
+public class IngestTrace {
+    private static final byte[] MAGIC = {'S', 'C', 'P', 'T', 'R', 'A', 'C', 'E'};
+    private static final int VERSION = 1;
+
+    /** Event of an instance stored */
+    public static final int STORE = 0;
+    /** Event of an association closed */
+    public static final int CLOSE = 1;
+    /**
+     * Number of AE titles, studies and series whose ids are remembered while
+     * writing
+     */
+    public static final int MAX_REMEMBERED_IDS = 100000;
+
+    private IngestTrace() {
+        throw new AssertionError("No IngestTrace instances for you!");
+    }
+
+    /**
+     * A recorded event. Only the type, time and association id are set for
+     * {@link #CLOSE} events.
+     */
+    @Value
+    public static class Event {
+        int type;
+        // Time since the start of the recording (microseconds)
+        long time;
+        int associationId;
+        int callingId;
+        int calledId;
+        int studyId;
+        int seriesId;
+        String sopClassUid;
+        String transferSyntaxUid;
+        // Size of the stored dicom file (bytes)
+        long size;
+    }
+
+    /**
+     * Read all events of a trace.
+     * @param traceFile the trace file
+     * @return the events, in recorded order
+     * @throws IOException if the file can't be read or isn't a valid trace
+     */
+    public static List<Event> read(Path traceFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(traceFile)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException("not an ingest trace: " + traceFile);
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("unsupported ingest trace version: " + version);
+            in.readLong(); // recording start time
+            List<Event> events = new ArrayList<>();
+            List<String> uids = new ArrayList<>();
+            long time = 0;
+            while (true) {
+                int type = in.read();
+                if (type < 0)
+                    return events;
+                time += readVarLong(in);
+                int associationId = (int) readVarLong(in);
+                if (type == CLOSE) {
+                    events.add(new Event(CLOSE, time, associationId, 0, 0, 0, 0, null, null, 0));
+                } else if (type == STORE) {
+                    int callingId = (int) readVarLong(in);
+                    int calledId = (int) readVarLong(in);
+                    int studyId = (int) readVarLong(in);
+                    int seriesId = (int) readVarLong(in);
+                    String cuid = readUid(in, uids);
+                    String tsuid = readUid(in, uids);
+                    long size = readVarLong(in);
+                    events.add(new Event(STORE, time, associationId, callingId, calledId, studyId, seriesId, cuid,
+                      tsuid, size));
+                } else {
+                    throw new IOException("invalid ingest trace event type: " + type);
+                }
+            }
+        }
+    }
+
+    // A UID id, followed by the UID itself if it is the first use of the id
+    private static String readUid(DataInputStream in, List<String> uids) throws IOException {
+        int id = (int) readVarLong(in);
+        if (id == uids.size())
+            uids.add(in.readUTF());
+        else if (id > uids.size())
+            throw new IOException("invalid uid reference in ingest trace: " + id);
+        return uids.get(id);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("truncated ingest trace");
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("invalid number in ingest trace");
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Writes events to a trace file, assigning the anonymized ids. Not thread
+     * safe.
+     */
+    public static class Writer implements AutoCloseable {
+        private final DataOutputStream out;
+        private final Map<Object, Integer> associationIds = new HashMap<>();
+        private final RecentIds aetIds = new RecentIds(MAX_REMEMBERED_IDS);
+        private final RecentIds studyIds = new RecentIds(MAX_REMEMBERED_IDS);
+        private final RecentIds seriesIds = new RecentIds(MAX_REMEMBERED_IDS);
+        private final Map<String, Integer> uidIds = new HashMap<>();
+        private final long start = System.nanoTime();
+        private long last;
+        // Ids of closed associations aren't reused
+        private int nextAssociationId;
+
+        /**
+         * Create a trace file, replacing any existing file.
+         * @param traceFile the trace file
+         * @throws IOException if the file can't be created
+         */
+        public Writer(Path traceFile) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(traceFile)));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+        }
+
+        /**
+         * Write an instance stored event.
+         * @param time the arrival time of the instance ({@link System#nanoTime()}),
+         * when its C-STORE request was handed to the storage service
+         * @param association the association, identified by equality
+         * @param callingAET the calling AE title
+         * @param calledAET the called AE title
+         * @param studyUid the study instance UID
+         * @param seriesUid the series instance UID
+         * @param cuid the SOP class UID
+         * @param tsuid the transfer syntax UID
+         * @param size the size of the stored dicom file (bytes)
+         * @throws IOException if the event can't be written
+         */
+        public void instanceStored(long time, Object association, String callingAET, String calledAET,
+          String studyUid, String seriesUid, String cuid, String tsuid, long size) throws IOException {
+            writeHeader(STORE, time, association);
+            writeVarLong(out, aetIds.id(callingAET));
+            writeVarLong(out, aetIds.id(calledAET));
+            writeVarLong(out, studyIds.id(studyUid));
+            writeVarLong(out, seriesIds.id(seriesUid));
+            writeUid(cuid);
+            writeUid(tsuid);
+            writeVarLong(out, size);
+        }
+
+        /**
+         * Write an association closed event.
+         * @param time the time the association closed ({@link System#nanoTime()})
+         * @param association the association, identified by equality
+         * @throws IOException if the event can't be written
+         */
+        public void associationClosed(long time, Object association) throws IOException {
+            writeHeader(CLOSE, time, association);
+            associationIds.remove(association);
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        // Events can be written slightly out of arrival order by concurrent
+        // associations, so time never goes backwards in the trace
+        private void writeHeader(int type, long time, Object association) throws IOException {
+            long micros = Math.max(last, (time - start) / 1000);
+            out.write(type);
+            writeVarLong(out, micros - last);
+            last = micros;
+            Integer id = associationIds.computeIfAbsent(association, x -> nextAssociationId++);
+            writeVarLong(out, id);
+        }
+
+        private void writeUid(String uid) throws IOException {
+            Integer id = uidIds.get(uid);
+            if (id != null) {
+                writeVarLong(out, id);
+                return;
+            }
+            id = uidIds.size();
+            uidIds.put(uid, id);
+            writeVarLong(out, id);
+            out.writeUTF(uid);
+        }
+    }
+
+    // Anonymized ids of values, in order of first appearance, null included.
+    // Only the most recently used values are remembered, so memory stays
+    // bounded on long recordings; ids of forgotten values aren't reused.
+    private static class RecentIds extends LinkedHashMap<String, Integer> {
+        private final int maxSize;
+        private int nextId;
+
+        RecentIds(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        int id(String value) {
+            Integer id = get(value);
+            if (id == null) {
+                id = nextId++;
+                put(value, id);
+            }
+            return id;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -1,12 +1,21 @@
 package org.getmarco.storescp;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Value;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 
+import java.util.List;
+
 /**
  * Simple value class to hold metadata about a transfered study. Serialized to
  * a metadata file using the Jackson {@link com.fasterxml.jackson.databind.ObjectMapper ObjectMapper}.
+ *
+ * Instances arriving after a study was uploaded are uploaded as a delta
+ * archive, linked to the study's first archive by the base archive id. The
+ * metadata of a delta lists all instances uploaded for the study so far, each
+ * with the archive holding it.
  */
 @Value
 public class MetaData {
@@ -17,8 +26,13 @@ public class MetaData {
     String studyUid;
     String studyDesc;
     String modality;
+    // Id of the zip archive this metadata describes (uuid)
+    String archiveId;
+    // Id of the study's first archive if this is a delta archive, else null
+    String baseArchiveId;
+    List<Instance> instances;
 
-    public MetaData(Attributes attributes) {
+    public MetaData(Attributes attributes, String archiveId, String baseArchiveId, List<Instance> instances) {
         this.patientId = attributes.getString(Tag.PatientID);
         this.patientName = attributes.getString(Tag.PatientName);
         this.patientDob = attributes.getString(Tag.PatientBirthDate);
@@ -26,5 +40,34 @@ public class MetaData {
         this.studyUid = attributes.getString(Tag.StudyInstanceUID);
         this.studyDesc = attributes.getString(Tag.StudyDescription);
         this.modality = attributes.getString(Tag.Modality);
+        this.archiveId = archiveId;
+        this.baseArchiveId = baseArchiveId;
+        this.instances = instances;
+    }
+
+    /**
+     * A dicom file of the study, with the checksums computed when it was
+     * received. Also read back as part of a {@link FinalizedStudy} record.
+     */
+    @Value
+    public static class Instance {
+        String sopInstanceUid;
+        // Id of the zip archive holding the instance
+        String archiveId;
+        long size;
+        String crc32;
+        // null if not computed
+        String sha256;
+
+        @JsonCreator
+        public Instance(@JsonProperty("sopInstanceUid") String sopInstanceUid,
+          @JsonProperty("archiveId") String archiveId, @JsonProperty("size") long size,
+          @JsonProperty("crc32") String crc32, @JsonProperty("sha256") String sha256) {
+            this.sopInstanceUid = sopInstanceUid;
+            this.archiveId = archiveId;
+            this.size = size;
+            this.crc32 = crc32;
+            this.sha256 = sha256;
+        }
     }
 }
@@ -0,0 +1,31 @@
+package org.getmarco.storescp;
+
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Destination for the zip archives and metadata files of processed studies.
+ * Uploads are asynchronous: implementations return immediately and complete
+ * the returned future when the object has been stored, without holding a
+ * thread for the duration of the upload.
+ */
+public interface ObjectStoreSink extends AutoCloseable {
+
+    /**
+     * Store a file as an object under the given key.
+     * @param key the object key, like 'files/&lt;uuid&gt;.zip'
+     * @param file the file to store
+     * @param contentMd5 the MD5 digest of the file, computed while it was
+     * written, for the store to verify the object against; null if unknown
+     * @return a future completing when the object has been stored, or
+     * completing exceptionally if storing it failed
+     */
+    CompletableFuture<Void> put(String key, Path file, byte[] contentMd5);
+
+    /**
+     * Release the resources held by this sink.
+     */
+    @Override
+    default void close() {
+    }
+}
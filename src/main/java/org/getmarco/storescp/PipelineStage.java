@@ -0,0 +1,170 @@
+package org.getmarco.storescp;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * One stage of the study processing pipeline: worker threads taking items
+ * from a bounded queue, and passing successfully processed items on to the
+ * next stage. Submitting to a full stage blocks, so a slow stage pushes back
+ * on the stages in front of it instead of letting work pile up in memory.
+ *
+ * The work done on an item completes a future, so a stage can also run
+ * asynchronous work (like non-blocking uploads) without holding a thread per
+ * item. The number of items in progress is bounded by the stage's in-flight
+ * limit, and an item counts as in progress until the next stage has taken it.
+ * @param <T> the type of work item
+ */
+class PipelineStage<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(PipelineStage.class);
+
+    private final String name;
+    private final BlockingQueue<T> queue;
+    private final Function<T, CompletableFuture<Boolean>> action;
+    private final PipelineStage<T> next;
+    private final Semaphore inFlight;
+    private final ExecutorService workers;
+    private final ExecutorService forwarder;
+    private final AtomicInteger active = new AtomicInteger();
+    private final Timer timer;
+    private final Counter failures;
+
+    /**
+     * Create and start a pipeline stage.
+     * @param name the stage name, used for thread names and metric tags
+     * @param threads the number of worker threads taking items from the queue
+     * @param maxInFlight the number of items that can be in progress at once
+     * @param queueCapacity the number of items that can wait for a worker
+     * @param virtualThreads whether the stage's threads are virtual threads
+     * @param action the work done on each item, completing with false if the item failed
+     * @param next the stage to pass processed items to, null for the last stage
+     * @param meterRegistry registry for the stage metrics
+     */
+    PipelineStage(String name, int threads, int maxInFlight, int queueCapacity, boolean virtualThreads,
+      Function<T, CompletableFuture<Boolean>> action, PipelineStage<T> next, MeterRegistry meterRegistry) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("invalid thread count for stage " + name + ": " + threads);
+        if (maxInFlight < threads)
+            throw new IllegalArgumentException("invalid in-flight limit for stage " + name + ": " + maxInFlight);
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException("invalid queue capacity for stage " + name + ": " + queueCapacity);
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.action = action;
+        this.next = next;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.timer = Timer.builder("storescp.pipeline.stage.duration")
+          .description("time spent processing a study in a pipeline stage")
+          .tag("stage", name).register(meterRegistry);
+        this.failures = Counter.builder("storescp.pipeline.stage.failures")
+          .description("studies that failed in a pipeline stage")
+          .tag("stage", name).register(meterRegistry);
+        Gauge.builder("storescp.pipeline.stage.queue", queue, BlockingQueue::size)
+          .description("studies waiting for a pipeline stage")
+          .tag("stage", name).register(meterRegistry);
+        Gauge.builder("storescp.pipeline.stage.active", active, AtomicInteger::get)
+          .description("studies being processed in a pipeline stage")
+          .tag("stage", name).register(meterRegistry);
+        this.forwarder = Executors.newSingleThreadExecutor(
+          Threads.threadFactory("scp-" + name + "-fwd-", virtualThreads));
+        this.workers = Executors.newFixedThreadPool(threads,
+          Threads.threadFactory("scp-" + name + "-", virtualThreads));
+        for (int i = 0; i < threads; i++)
+            workers.execute(this::work);
+    }
+
+    /**
+     * Queue an item for this stage, waiting for space if the queue is full.
+     * @param item the work item
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void submit(T item) throws InterruptedException {
+        queue.put(item);
+    }
+
+    /**
+     * Returns the number of items queued or in progress in this stage.
+     * @return the number of items in the stage
+     */
+    int size() {
+        return queue.size() + active.get();
+    }
+
+    void shutdown() throws InterruptedException {
+        workers.shutdownNow();
+        forwarder.shutdownNow();
+        workers.awaitTermination(10, TimeUnit.SECONDS);
+        forwarder.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            T item;
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                inFlight.release();
+                return;
+            }
+            active.incrementAndGet();
+            long start = System.nanoTime();
+            CompletableFuture<Boolean> result;
+            try {
+                result = action.apply(item);
+            } catch (RuntimeException e) {
+                result = new CompletableFuture<>();
+                result.completeExceptionally(e);
+            }
+            result.whenComplete((success, error) -> complete(item, start, success, error));
+        }
+    }
+
+    // Record the outcome of an item, and pass it on to the next stage. This
+    // can run on a thread of an asynchronous action, so if the next stage is
+    // full the item is handed over from the forwarder thread instead.
+    private void complete(T item, long start, Boolean success, Throwable error) {
+        timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (error != null)
+            LOG.error("error in " + name + " stage", error);
+        if (error != null || !Boolean.TRUE.equals(success)) {
+            failures.increment();
+            release();
+        } else if (next == null || next.queue.offer(item)) {
+            release();
+        } else {
+            forwarder.execute(() -> {
+                try {
+                    next.submit(item);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    release();
+                }
+            });
+        }
+    }
+
+    private void release() {
+        active.decrementAndGet();
+        inFlight.release();
+    }
+}
@@ -0,0 +1,146 @@
+package org.getmarco.storescp;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ObjectStoreSink} uploading to an S3 bucket with the non-blocking AWS
+ * SDK client. The number of concurrent requests is bounded by the client's
+ * HTTP connection pool. When the content MD5 is known it is sent with the
+ * request, so S3 verifies the upload without the client rehashing the file.
+ *
+ * Every chunk of a request body takes its bytes from the shared
+ * {@link UploadRateLimiter} before it is handed to the HTTP client, so large
+ * objects are sent at the configured rate for their whole duration.
+ */
+public class S3ObjectStoreSink implements ObjectStoreSink {
+
+    private final S3AsyncClient s3;
+    private final String bucket;
+    private final UploadRateLimiter rateLimiter;
+
+    public S3ObjectStoreSink(S3AsyncClient s3, String bucket, UploadRateLimiter rateLimiter) {
+        this.s3 = Objects.requireNonNull(s3, "null s3 client");
+        this.bucket = Objects.requireNonNull(bucket, "null bucket");
+        this.rateLimiter = Objects.requireNonNull(rateLimiter, "null upload rate limiter");
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String key, Path file, byte[] contentMd5) {
+        PutObjectRequest.Builder request = PutObjectRequest.builder().bucket(bucket).key(key);
+        if (contentMd5 != null)
+            request.contentMD5(Base64.getEncoder().encodeToString(contentMd5));
+        AsyncRequestBody body = new ThrottledRequestBody(AsyncRequestBody.fromFile(file), rateLimiter);
+        return s3.putObject(request.build(), body).thenApply(response -> null);
+    }
+
+    @Override
+    public void close() {
+        s3.close();
+    }
+
+    // Request body passing on the chunks of another body once the rate
+    // limiter lets them go.
+    private static class ThrottledRequestBody implements AsyncRequestBody {
+        private final AsyncRequestBody source;
+        private final UploadRateLimiter rateLimiter;
+
+        ThrottledRequestBody(AsyncRequestBody source, UploadRateLimiter rateLimiter) {
+            this.source = source;
+            this.rateLimiter = rateLimiter;
+        }
+
+        @Override
+        public Optional<Long> contentLength() {
+            return source.contentLength();
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+            source.subscribe(new ThrottledSubscriber(subscriber, rateLimiter));
+        }
+    }
+
+    // Subscribes to the source body for the HTTP client. Chunks are requested
+    // from the source one at a time, and the next one only after the previous
+    // one was passed on, so chunks are passed on in order and never
+    // concurrently, and completion is passed on after the last chunk.
+    private static class ThrottledSubscriber implements Subscriber<ByteBuffer>, Subscription {
+        private final Subscriber<? super ByteBuffer> downstream;
+        private final UploadRateLimiter rateLimiter;
+        // Chunks requested by the HTTP client and not yet passed on
+        private final AtomicLong demand = new AtomicLong();
+        // Whether a chunk was requested from the source and not yet passed on
+        private final AtomicBoolean pending = new AtomicBoolean();
+        private volatile Subscription upstream;
+        // Completes when the last chunk received has been passed on
+        private volatile CompletableFuture<Void> passedOn = CompletableFuture.completedFuture(null);
+
+        ThrottledSubscriber(Subscriber<? super ByteBuffer> downstream, UploadRateLimiter rateLimiter) {
+            this.downstream = downstream;
+            this.rateLimiter = rateLimiter;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            upstream = subscription;
+            downstream.onSubscribe(this);
+        }
+
+        @Override
+        public void onNext(ByteBuffer chunk) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            passedOn = done;
+            rateLimiter.reserve(chunk.remaining()).thenRun(() -> {
+                downstream.onNext(chunk);
+                demand.decrementAndGet();
+                pending.set(false);
+                done.complete(null);
+                requestNext();
+            });
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            passedOn.thenRun(() -> downstream.onError(error));
+        }
+
+        @Override
+        public void onComplete() {
+            passedOn.thenRun(downstream::onComplete);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                upstream.cancel();
+                downstream.onError(new IllegalArgumentException("non-positive request: " + n));
+                return;
+            }
+            demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            requestNext();
+        }
+
+        @Override
+        public void cancel() {
+            upstream.cancel();
+        }
+
+        private void requestNext() {
+            if (demand.get() > 0 && pending.compareAndSet(false, true))
+                upstream.request(1);
+        }
+    }
+}
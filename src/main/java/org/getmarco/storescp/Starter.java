@@ -15,13 +15,18 @@ import org.springframework.stereotype.Component;
 import org.springframework.util.FileSystemUtils;
 import org.springframework.util.StringUtils;
 
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * This class prepares and starts the Dcm4che-based storage service class provider (SCP).
@@ -38,34 +43,41 @@ public class Starter implements CommandLineRunner {
     @Autowired
     private CStoreSCP storeSCP;
     @Autowired
+    private StgCmtSCP stgCmtSCP;
+    @Autowired
+    private TlsSupport tlsSupport;
+    @Autowired
     private ObjectMapper objectMapper;
 
     private Device device;
     private ApplicationEntity ae;
-    private Connection conn;
 
     @Override
     public void run(String... args) throws Exception {
         String deviceName = config.getDeviceName();
         if (!StringUtils.hasText(deviceName))
             throw new IllegalArgumentException("empty device name");
-        int port = config.getPort();
-        if (port <= 0)
-            throw new IllegalArgumentException("invalid port: " + port);
-        LOG.info("creating device {} on port {}", deviceName, port);
+        List<Config.Listener> listeners = config.getEffectiveListeners();
+        if (config.getTls().isEnabled() && !config.getListeners().isEmpty()
+          && listeners.stream().noneMatch(Config.Listener::isTls))
+            LOG.warn("tls enabled but ignored, configured listeners replace the tls listener: add a listener with tls");
+        LOG.info("creating device {} with {} listeners", deviceName, listeners.size());
 
-        device = new Device(deviceName);
+        device = new Device(deviceName) {
+            @Override
+            public SSLContext sslContext() throws GeneralSecurityException {
+                return tlsSupport.instrument(super.sslContext());
+            }
+        };
         ae = new ApplicationEntity("*");
-        conn = new Connection();
-        conn.setPort(port);
-        conn.setTcpNoDelay(true);
-        conn.setReceivePDULength(Connection.DEF_MAX_PDU_LENGTH);
-        conn.setSendPDULength(Connection.DEF_MAX_PDU_LENGTH);
-        conn.setMaxOpsInvoked(0);
-        conn.setMaxOpsPerformed(0);
         device.addApplicationEntity(ae);
-        device.addConnection(conn);
-        ae.addConnection(conn);
+        if (listeners.stream().anyMatch(Config.Listener::isTls))
+            tlsSupport.configureDevice(device);
+        for (Config.Listener listener : listeners) {
+            Connection conn = createConnection(listener);
+            device.addConnection(conn);
+            ae.addConnection(conn);
+        }
         ae.setAssociationAcceptor(true);
         ae.addTransferCapability(
           new TransferCapability(null,
@@ -73,7 +85,8 @@ public class Starter implements CommandLineRunner {
             TransferCapability.Role.SCP,
             "*"));
         device.setDimseRQHandler(createServiceRegistry());
-        ExecutorService executorService = Executors.newCachedThreadPool();
+        LOG.info("running associations on {} threads", config.isVirtualThreads() ? "virtual" : "platform");
+        ExecutorService executorService = Threads.newExecutor("scp-assoc-", config.isVirtualThreads());
         ScheduledExecutorService scheduledExecutorService =
           Executors.newSingleThreadScheduledExecutor();
         device.setScheduledExecutor(scheduledExecutorService);
@@ -88,6 +101,7 @@ public class Starter implements CommandLineRunner {
             fail("null storage directory");
         Path storageDir = Paths.get(storage);
         if (config.isClearStorageDirectoryOnStart()) {
+            warnUnprocessed(storageDir.resolve(Config.ZIP_DIR));
             try {
                 FileSystemUtils.deleteRecursively(storageDir);
             } catch (IOException ex) {
@@ -109,17 +123,93 @@ public class Starter implements CommandLineRunner {
         if (!Files.exists(zipDir))
             fail("unable to create incoming directory: " + zipDir);
 
+        String finalized = config.getFinalizedStudyDir();
+        LOG.info("checking finalized study directory: {}", finalized);
+        if (finalized == null)
+            fail("null finalized study directory");
+        Path finalizedDir = Paths.get(finalized);
+        if (config.isClearStorageDirectoryOnStart()
+          && finalizedDir.toAbsolutePath().normalize().startsWith(storageDir.toAbsolutePath().normalize()))
+            fail("finalized study directory inside cleared storage directory: " + finalizedDir);
+        Files.createDirectories(finalizedDir);
+        if (!Files.exists(finalizedDir))
+            fail("unable to create finalized directory: " + finalizedDir);
+
         // Display current allowed AE pairings and their configured study wait time
         LOG.info("aes: {}", objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(config.getAetitlePairs()));
     }
 
+    /**
+     * Stop accepting new associations by closing the listening connections.
+     * Open associations are not affected.
+     */
+    public void stopListening() {
+        if (device != null)
+            device.unbindConnections();
+    }
+
+    /**
+     * Returns the number of open associations.
+     * @return the number of open associations
+     */
+    public int getOpenAssociationCount() {
+        return device == null ? 0 : device.getNumberOfOpenAssociations();
+    }
+
+    // Create a listening connection with the transport settings of the
+    // listener's profile. The connection's common name is the listener name,
+    // used to apply the listener's called AE Title restrictions.
+    private Connection createConnection(Config.Listener listener) {
+        if (!StringUtils.hasText(listener.getName()))
+            throw new IllegalArgumentException("empty listener name");
+        if (listener.getPort() <= 0)
+            throw new IllegalArgumentException("invalid port for listener " + listener.getName() + ": " + listener.getPort());
+        Config.TransportProfile profile = config.getTransportProfile(listener.getProfile());
+        LOG.info("adding {}listener {} on {}:{}", listener.isTls() ? "TLS " : "", listener.getName(),
+          listener.getBindAddress() == null ? "*" : listener.getBindAddress(), listener.getPort());
+        Connection connection = new Connection();
+        connection.setCommonName(listener.getName());
+        connection.setPort(listener.getPort());
+        if (listener.getBindAddress() != null) {
+            connection.setHostname(listener.getBindAddress());
+            connection.setBindAddress(listener.getBindAddress());
+        }
+        connection.setTcpNoDelay(profile.isTcpNoDelay());
+        connection.setReceivePDULength(profile.getReceivePduLength());
+        connection.setSendPDULength(profile.getSendPduLength());
+        connection.setSendBufferSize(profile.getSendBufferSize());
+        connection.setReceiveBufferSize(profile.getReceiveBufferSize());
+        connection.setBacklog(profile.getBacklog());
+        connection.setMaxOpsInvoked(0);
+        connection.setMaxOpsPerformed(0);
+        if (listener.isTls())
+            tlsSupport.configureConnection(connection);
+        return connection;
+    }
+
     private DicomServiceRegistry createServiceRegistry() {
         DicomServiceRegistry serviceRegistry = new DicomServiceRegistry();
         serviceRegistry.addDicomService(new BasicCEchoSCP());
         serviceRegistry.addDicomService(storeSCP);
+        serviceRegistry.addDicomService(stgCmtSCP);
         return serviceRegistry;
     }
 
+    // Studies left in the processing work area failed processing before the
+    // last shutdown, report them before they are cleared
+    private void warnUnprocessed(Path zipDir) {
+        if (!Files.isDirectory(zipDir))
+            return;
+        try (Stream<Path> paths = Files.list(zipDir)) {
+            List<String> studies = paths.filter(Files::isDirectory).map(path -> path.getFileName().toString())
+              .collect(Collectors.toList());
+            if (!studies.isEmpty())
+                LOG.warn("clearing storage directory, deleting {} unprocessed studies: {}", studies.size(), studies);
+        } catch (IOException e) {
+            LOG.error("unable to list processing work area: " + zipDir, e);
+        }
+    }
+
     private void fail(String message) {
         LOG.error(message);
         finisher.finish(1);
@@ -0,0 +1,324 @@
+package org.getmarco.storescp;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Commands;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.pdu.RoleSelection;
+import org.dcm4che3.net.service.AbstractDicomService;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Storage Commitment Push Model service class provider. A storage commitment
+ * request (N-ACTION) tells us exactly which instances make up a transfer, so
+ * once all of them have been received the studies they belong to can be
+ * finalized immediately instead of waiting out the configured study wait
+ * time. The result is reported back to the requestor with an N-EVENT-REPORT.
+ *
+ * Referenced instances are looked up in the record of instances received by
+ * the {@link CStoreSCP}, kept until their study is archived, and after that
+ * in the {@link FinalizedStudies}, so instances already moved to processing or
+ * uploaded are committed too.
+ */
+@Component
+public class StgCmtSCP extends AbstractDicomService {
+    private static final Logger LOG = LoggerFactory.getLogger(StgCmtSCP.class);
+
+    /** Action Type ID of a 'Request Storage Commitment' N-ACTION */
+    public static final int REQUEST_STORAGE_COMMITMENT = 1;
+    /** Event Type ID reporting that all instances were committed */
+    public static final int STORAGE_COMMITMENT_SUCCESS = 1;
+    /** Event Type ID reporting that some instances could not be committed */
+    public static final int STORAGE_COMMITMENT_FAILURES = 2;
+
+    @Autowired
+    private Config config;
+    @Autowired
+    private StudyCompletionCheck completionCheck;
+    @Autowired
+    private FinalizedStudies finalizedStudies;
+
+    private final ConcurrentLinkedQueue<CommitmentRequest> pending = new ConcurrentLinkedQueue<>();
+    // Results handed to the device executor and not yet reported
+    private final AtomicInteger reporting = new AtomicInteger();
+    // Instances received and not yet archived, by AE Title pair and instance
+    // UID
+    private final Map<String, ReceivedInstance> received = new ConcurrentHashMap<>();
+    // Whether incomplete requests are reported without waiting out their
+    // deadline
+    private volatile boolean failingIncomplete;
+
+    public StgCmtSCP() {
+        super(UID.StorageCommitmentPushModelSOPClass);
+    }
+
+    @Override
+    protected void onDimseRQ(Association as, PresentationContext pc, Dimse dimse, Attributes rq, Attributes actionInfo)
+      throws IOException {
+        if (dimse != Dimse.N_ACTION_RQ)
+            throw new DicomServiceException(Status.UnrecognizedOperation);
+        int actionTypeID = rq.getInt(Tag.ActionTypeID, 0);
+        if (actionTypeID != REQUEST_STORAGE_COMMITMENT)
+            throw new DicomServiceException(Status.NoSuchActionType).setActionTypeID(actionTypeID);
+
+        String callingAET = as.getCallingAET();
+        String calledAET = as.getCalledAET();
+        if (!config.hasAetitlePair(callingAET, calledAET))
+            throw new DicomServiceException(Status.NotAuthorized, "unknown ae title pair: " + callingAET + " -> " + calledAET);
+        if (!config.isAcceptedOnListener(as.getConnection().getCommonName(), calledAET))
+            throw new DicomServiceException(Status.NotAuthorized, "called ae title not accepted on this port: " + calledAET);
+        String transactionUid = actionInfo == null ? null : actionInfo.getString(Tag.TransactionUID);
+        Sequence refSOPs = actionInfo == null ? null : actionInfo.getSequence(Tag.ReferencedSOPSequence);
+        if (transactionUid == null || refSOPs == null || refSOPs.isEmpty())
+            throw new DicomServiceException(Status.MissingAttribute, "missing transaction uid or referenced sop sequence");
+
+        Map<String, String> instances = new LinkedHashMap<>();
+        for (Attributes refSOP : refSOPs)
+            instances.put(refSOP.getString(Tag.ReferencedSOPInstanceUID), refSOP.getString(Tag.ReferencedSOPClassUID));
+        LOG.info("{}: storage commitment requested for {} instances, transaction uid: {}", as, instances.size(),
+          transactionUid);
+        pending.add(new CommitmentRequest(as, transactionUid, instances,
+          System.currentTimeMillis() + config.getStudyWaitTime(callingAET, calledAET)));
+        as.tryWriteDimseRSP(pc, Commands.mkNActionRSP(rq, Status.Success));
+    }
+
+    /**
+     * Record a received instance, so it can be committed without looking for
+     * it in the filesystem.
+     * @param calledAET the called AE Title
+     * @param callingAET the calling AE Title
+     * @param studyUid the study UID of the instance
+     * @param iuid the instance UID
+     */
+    public void instanceReceived(String calledAET, String callingAET, String studyUid, String iuid) {
+        received.put(key(calledAET, callingAET, iuid),
+          new ReceivedInstance(calledAET, callingAET, studyUid, iuid, System.currentTimeMillis()));
+    }
+
+    /**
+     * Returns the number of storage commitment requests waiting for their
+     * referenced instances or for their result to be reported.
+     * @return the number of unfinished requests
+     */
+    public int getPendingCount() {
+        return pending.size() + reporting.get();
+    }
+
+    /**
+     * Report incomplete storage commitment requests with their missing
+     * instances as failures on the next check, instead of waiting out the
+     * study wait time. Called by the {@link GracefulDrain} once no more
+     * instances can arrive, so pending requests don't hold up the drain.
+     */
+    public void failIncomplete() {
+        failingIncomplete = true;
+    }
+
+    /**
+     * Check pending storage commitment requests. Requests for which every
+     * referenced instance has been received trigger immediate finalization of
+     * the studies holding those instances. Requests still incomplete after
+     * the configured study wait time are reported with the missing instances
+     * as failures, and their studies are left to the regular completion check.
+     * Results are reported on the device executor, so a slow requestor doesn't
+     * hold up the scheduler.
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void checkCommitments() {
+        for (Iterator<CommitmentRequest> it = pending.iterator(); it.hasNext();) {
+            CommitmentRequest request = it.next();
+            // instance UID -> study UID, null if the study is archived
+            Map<String, String> found = new LinkedHashMap<>();
+            for (String iuid : request.instances.keySet()) {
+                ReceivedInstance instance = received.get(key(request.calledAET, request.callingAET, iuid));
+                if (instance != null)
+                    found.put(iuid, instance.studyUid);
+                else if (finalizedStudies.isArchived(request.calledAET, request.callingAET, iuid))
+                    found.put(iuid, null);
+            }
+            boolean complete = found.size() == request.instances.size();
+            if (!complete && !failingIncomplete && System.currentTimeMillis() < request.deadline)
+                continue;
+            it.remove();
+            if (complete) {
+                // Studies still waiting in the study directories:
+                // <storage dir>/<called AE title>/<calling AE title>/<study UID>
+                Path callingAETDir = config.getStorageDirPath().resolve(request.calledAET).resolve(request.callingAET);
+                new LinkedHashSet<>(found.values()).stream().filter(Objects::nonNull)
+                  .forEach(studyUid -> completionCheck.completeStudy(callingAETDir.resolve(studyUid)));
+            }
+            reporting.incrementAndGet();
+            request.ae.getDevice().execute(() -> {
+                try {
+                    sendEventReport(request, found.keySet());
+                } finally {
+                    reporting.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    /**
+     * Drop the records of received instances whose study has been archived,
+     * or that were received longer ago than the finalized study retention
+     * time.
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void purgeReceived() {
+        long cutoff = System.currentTimeMillis() - config.getFinalizedStudyRetention();
+        received.values().removeIf(instance -> instance.time < cutoff
+          || finalizedStudies.isArchived(instance.calledAET, instance.callingAET, instance.iuid));
+    }
+
+    // Key of a received instance
+    private static String key(String calledAET, String callingAET, String iuid) {
+        return calledAET + '\\' + callingAET + '\\' + iuid;
+    }
+
+    // Report the commitment result, on the original association if the
+    // requestor kept it open, otherwise on a new association to the configured
+    // storage commitment destination of the requestor.
+    private void sendEventReport(CommitmentRequest request, Set<String> committed) {
+        Attributes eventInfo = new Attributes(3);
+        eventInfo.setString(Tag.TransactionUID, VR.UI, request.transactionUid);
+        List<String> failed = new ArrayList<>();
+        Sequence refSOPs = eventInfo.newSequence(Tag.ReferencedSOPSequence, committed.size());
+        for (Map.Entry<String, String> instance : request.instances.entrySet()) {
+            if (committed.contains(instance.getKey()))
+                refSOPs.add(refSOP(instance.getValue(), instance.getKey(), -1));
+            else
+                failed.add(instance.getKey());
+        }
+        if (!failed.isEmpty()) {
+            Sequence failedSOPs = eventInfo.newSequence(Tag.FailedSOPSequence, failed.size());
+            failed.forEach(iuid -> failedSOPs.add(refSOP(request.instances.get(iuid), iuid, Status.NoSuchObjectInstance)));
+        }
+        int eventTypeID = failed.isEmpty() ? STORAGE_COMMITMENT_SUCCESS : STORAGE_COMMITMENT_FAILURES;
+        LOG.info("storage commitment result for transaction uid {}: {} committed, {} failed", request.transactionUid,
+          committed.size(), failed.size());
+
+        Association as = request.as;
+        boolean newAssociation = !as.isReadyForDataTransfer();
+        try {
+            if (newAssociation) {
+                as = openAssociation(request);
+                if (as == null)
+                    return;
+            }
+            // No transfer syntax given, so the one negotiated for the SOP
+            // class is used
+            DimseRSP rsp = as.neventReport(UID.StorageCommitmentPushModelSOPClass,
+              UID.StorageCommitmentPushModelSOPInstance, eventTypeID, eventInfo, null);
+            rsp.next();
+            int status = rsp.getCommand().getInt(Tag.Status, -1);
+            if (status != Status.Success)
+                LOG.warn("{}: storage commitment event report returned status: {}", as, Integer.toHexString(status));
+        } catch (Exception e) {
+            LOG.error("unable to send storage commitment event report for transaction uid: " + request.transactionUid, e);
+        } finally {
+            if (newAssociation && as != null) {
+                try {
+                    as.release();
+                } catch (IOException e) {
+                    LOG.warn("{}: unable to release association", as, e);
+                }
+            }
+        }
+    }
+
+    // Open a new association to the requestor, which has to accept the SCP
+    // role for the storage commitment push model SOP class.
+    private Association openAssociation(CommitmentRequest request) throws Exception {
+        Connection remote = config.getStorageCommitmentConnection(request.callingAET);
+        if (remote == null) {
+            LOG.warn("association for transaction uid {} closed and no storage commitment destination configured for: {}",
+              request.transactionUid, request.callingAET);
+            return null;
+        }
+        AAssociateRQ rq = new AAssociateRQ();
+        rq.setCallingAET(request.calledAET);
+        rq.setCalledAET(request.callingAET);
+        rq.addPresentationContext(new PresentationContext(1, UID.StorageCommitmentPushModelSOPClass,
+          UID.ImplicitVRLittleEndian));
+        rq.addRoleSelection(new RoleSelection(UID.StorageCommitmentPushModelSOPClass, false, true));
+        return request.ae.connect(remote, rq);
+    }
+
+    private static Attributes refSOP(String cuid, String iuid, int failureReason) {
+        Attributes attrs = new Attributes(3);
+        attrs.setString(Tag.ReferencedSOPClassUID, VR.UI, cuid);
+        attrs.setString(Tag.ReferencedSOPInstanceUID, VR.UI, iuid);
+        if (failureReason >= 0)
+            attrs.setInt(Tag.FailureReason, VR.US, failureReason);
+        return attrs;
+    }
+
+    // An instance received and not yet archived
+    private static class ReceivedInstance {
+        final String calledAET;
+        final String callingAET;
+        final String studyUid;
+        final String iuid;
+        // Time the instance was received (milliseconds)
+        final long time;
+
+        ReceivedInstance(String calledAET, String callingAET, String studyUid, String iuid, long time) {
+            this.calledAET = calledAET;
+            this.callingAET = callingAET;
+            this.studyUid = studyUid;
+            this.iuid = iuid;
+            this.time = time;
+        }
+    }
+
+    // A storage commitment request waiting for its referenced instances.
+    private static class CommitmentRequest {
+        final Association as;
+        final ApplicationEntity ae;
+        final String calledAET;
+        final String callingAET;
+        final String transactionUid;
+        // referenced instance UID -> SOP class UID
+        final Map<String, String> instances;
+        final long deadline;
+
+        CommitmentRequest(Association as, String transactionUid, Map<String, String> instances, long deadline) {
+            this.as = as;
+            this.ae = as.getApplicationEntity();
+            this.calledAET = as.getCalledAET();
+            this.callingAET = as.getCallingAET();
+            this.transactionUid = transactionUid;
+            this.instances = instances;
+            this.deadline = deadline;
+        }
+    }
+}
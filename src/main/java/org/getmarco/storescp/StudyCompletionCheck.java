@@ -1,21 +1,33 @@
 package org.getmarco.storescp;
 
+import org.dcm4che3.data.Tag;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * This class runs a scheduled check to determine if incoming studies are
  * 'complete'. If they are (no new files received within configured wait time),
- *  then move them to the workarea for processing and trigger processing.
+ *  then move them to the workarea and schedule them for processing.
+ *  While the disk is above its high watermark, incoming studies are
+ *  completed after the shorter overload study wait time (see
+ *  {@link DiskSpaceMonitor}).
  */
 @Component
 public class StudyCompletionCheck {
@@ -24,7 +36,26 @@ public class StudyCompletionCheck {
     @Autowired
     private Config config;
     @Autowired
-    private StudyProcessor processor;
+    private StudyScheduler scheduler;
+    @Autowired
+    private StudyTracer tracer;
+    @Autowired
+    private DiskSpaceMonitor diskSpaceMonitor;
+
+    private final Lock lock = new ReentrantLock();
+    // Held shared while instances are moved into study directories, and
+    // exclusively while a study directory is moved to the work area, so the
+    // dicom and checksum files of an instance always move together
+    private final ReadWriteLock incomingLock = new ReentrantReadWriteLock();
+
+    @PostConstruct
+    public void start() {
+        diskSpaceMonitor.addOverloadListener(() -> {
+            int completed = completeIdle(config.getOverloadStudyWaitTime());
+            if (completed > 0)
+                LOG.warn("disk above high watermark, completed {} incoming studies early", completed);
+        });
+    }
 
     /**
      * Check the filesystem workspace for 'complete' studies.
@@ -41,6 +72,52 @@ public class StudyCompletionCheck {
         }
     }
 
+    /**
+     * Returns the lock to hold while moving the files of a received instance
+     * into its study directory, so the study isn't completed in between.
+     * Shared, so instances of different associations are moved concurrently.
+     * @return the lock
+     */
+    public Lock getIncomingLock() {
+        return incomingLock.readLock();
+    }
+
+    /**
+     * Complete every incoming study right away, regardless of the study wait
+     * time. Used when draining before shutdown, once no more instances can
+     * arrive.
+     * @return the number of studies completed
+     */
+    public int completeAll() {
+        return completeIdle(0);
+    }
+
+    // Complete the incoming studies without new files for the given time
+    // (milliseconds), returning the number of studies completed
+    private int completeIdle(int idleTime) {
+        List<Path> studyDirs = new ArrayList<>();
+        Path storageDir = config.getStorageDirPath();
+        try (Stream<Path> calledAETDirs = Files.list(storageDir)) {
+            for (Path calledAETDir : calledAETDirs.filter(config::isCalledAETDir).collect(Collectors.toList())) {
+                try (Stream<Path> callingAETDirs = Files.list(calledAETDir)) {
+                    for (Path callingAETDir : callingAETDirs.collect(Collectors.toList())) {
+                        try (Stream<Path> dirs = Files.list(callingAETDir)) {
+                            dirs.forEach(studyDirs::add);
+                        }
+                    }
+                }
+            }
+        } catch(IOException e) {
+            LOG.error("unable to list incoming studies in storage directory: " + storageDir, e);
+        }
+        int completed = 0;
+        for (Path studyDir : studyDirs) {
+            if ((idleTime <= 0 || isStudyComplete(studyDir, idleTime)) && completeStudy(studyDir))
+                completed++;
+        }
+        return completed;
+    }
+
     // Check whether studies received for a particular AE Title are 'complete'.
     private void checkCalledAETDir(Path calledAETDir) {
         try (Stream<Path> callingAETDirs = Files.list(calledAETDir)) {
@@ -64,20 +141,69 @@ public class StudyCompletionCheck {
     // Check if a given study is 'complete'.
     private void checkStudyDir(Path studyDir, int studyWaitTime) {
         if (isStudyComplete(studyDir, studyWaitTime))
-            processCompleteStudy(studyDir);
+            completeStudy(studyDir);
+    }
+
+    /**
+     * Prepare a 'completed' study for processing, and schedule it.
+     * Besides the scheduled check, this is also called when a storage
+     * commitment request shows that all instances of a study were received,
+     * so it is locked to keep a study from being finalized twice.
+     * @param studyPath the directory holding the dicom files of the study
+     * @return whether the study was moved and scheduled
+     */
+    public boolean completeStudy(Path studyPath) {
+        lock.lock();
+        try {
+            return doCompleteStudy(studyPath);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    // Prepare the 'completed' study for processing, and trigger processing.
-    private void processCompleteStudy(Path studyPath) {
-        LOG.info("found complete study: {}", studyPath);
+    // Move and schedule a study, holding the lock. A lock rather than a
+    // synchronized method, as this blocks on file I/O (see Threads).
+    private boolean doCompleteStudy(Path studyPath) {
         Path dest = config.getZipDirPath().resolve(UUID.randomUUID().toString());
+        Lock moveLock = incomingLock.writeLock();
+        moveLock.lock();
         try {
+            if (!Files.isDirectory(studyPath))
+                return false;
+            LOG.info("found complete study: {}", studyPath);
             Files.move(studyPath, dest);
         } catch (IOException e) {
             LOG.error("unable to move study dir for processing: " + studyPath, e);
+            return false;
+        } finally {
+            moveLock.unlock();
+        }
+        CompletedStudy study = describeStudy(studyPath, dest);
+        tracer.completed(study.getCalledAET(), study.getCallingAET(), study.getStudyUid(), study.getId());
+        scheduler.submit(study);
+        return true;
+    }
+
+    // Describe a complete study moved to the work area, for scheduling.
+    // Work area path is: <storageDir>/zip/<uuid>, original study path is:
+    // <storageDir>/<called AE title>/<calling AE title>/<study UID>
+    private CompletedStudy describeStudy(Path studyPath, Path dest) {
+        String studyUid = studyPath.getFileName().toString();
+        String callingAET = studyPath.getParent().getFileName().toString();
+        String calledAET = studyPath.getParent().getParent().getFileName().toString();
+        String modality = null;
+        try {
+            modality = Util.parseDir(dest).getString(Tag.Modality);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("unable to read modality for study: {}", dest);
+        }
+        long size = 0;
+        try (Stream<Path> files = Files.list(dest)) {
+            size = files.filter(Util::isDicomFile).mapToLong(path -> path.toFile().length()).sum();
+        } catch (IOException e) {
+            LOG.warn("unable to read size of study: {}", dest);
         }
-        processor.process(dest);
-        LOG.info("finished processing complete study: " + studyPath);
+        return new CompletedStudy(dest, calledAET, callingAET, studyUid, modality, size);
     }
 
     // Check if the given filesystem path (assumed to be a directory holding
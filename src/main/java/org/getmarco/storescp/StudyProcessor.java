@@ -1,99 +1,350 @@
 package org.getmarco.storescp;
 
-import com.amazonaws.services.s3.AmazonS3;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.dcm4che3.data.Attributes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Component;
 import org.springframework.util.FileSystemUtils;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * This class processes 'complete' dicom studies that have been received. This
  * will include creating a zip archive with the dicom files for the study,
  * creating a metadata file describing the study. uploading the zip archive and
- * metadata file to S3, and finally deleting the study (zip archive, metadata
+ * metadata file to the object store, and finally deleting the study (zip archive, metadata
  * file, original study directory).
+ *
+ * Processing runs as a pipeline of stages (parse, archive, upload, cleanup),
+ * each with its own worker threads and bounded queue, so CPU bound archiving
+ * and network bound uploading of different studies overlap. Uploads are
+ * asynchronous, bounded by the upload stage's in-flight limit rather than its
+ * thread count.
+ *
+ * The checksums computed when each dicom file was received are reused
+ * throughout: they are listed per instance in the metadata file and checked
+ * against the zip entries, and the MD5s of the zip archive and metadata file
+ * are computed while writing them and sent with the uploads, so no file is
+ * read again just to be hashed.
+ *
+ * A study that was finalized before (see {@link FinalizedStudies}), even if
+ * its earlier archive is still in the pipeline, is uploaded as a delta archive
+ * holding only the instances not archived yet, with metadata linking it to the
+ * study's first archive. The archive is reserved when the study is parsed and
+ * released again if processing fails.
  */
 @Component
 public class StudyProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(StudyProcessor.class);
 
+    /** Stage parsing study attributes and writing the metadata file */
+    public static final String PARSE_STAGE = "parse";
+    /** Stage creating the zip archive of the study */
+    public static final String ARCHIVE_STAGE = "archive";
+    /** Stage uploading the zip archive and metadata file */
+    public static final String UPLOAD_STAGE = "upload";
+    /** Stage deleting the study, zip archive and metadata file */
+    public static final String CLEANUP_STAGE = "cleanup";
+
     @Autowired
     private ObjectMapper objectMapper;
     @Autowired
-    private AmazonS3 s3;
+    private ObjectStoreSink objectStore;
     @Autowired
     private Config config;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private StudyTracer tracer;
+    @Autowired
+    private FinalizedStudies finalizedStudies;
 
-    @Async
-    public void process(Path studyDir) {
-        Objects.requireNonNull(studyDir,"null study path");
-        Path studyDirName = studyDir.getFileName(); //uuid value
-        Path metaFile = studyDir.getParent().resolve(studyDirName.toString() + Config.TXT_EXT);
-        Path zipFile = studyDir.getParent().resolve(studyDirName.toString() + Config.ZIP_EXT);
+    private PipelineStage<StudyJob> parseStage;
+    private PipelineStage<StudyJob> archiveStage;
+    private PipelineStage<StudyJob> uploadStage;
+    private PipelineStage<StudyJob> cleanupStage;
 
-        // Create metadata file
-        MetaData metaData = null;
+    @PostConstruct
+    public void start() {
+        cleanupStage = createStage(CLEANUP_STAGE, synchronous(this::cleanup), null);
+        uploadStage = createStage(UPLOAD_STAGE, this::upload, cleanupStage);
+        archiveStage = createStage(ARCHIVE_STAGE, synchronous(this::archive), uploadStage);
+        parseStage = createStage(PARSE_STAGE, synchronous(this::parse), archiveStage);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        parseStage.shutdown();
+        archiveStage.shutdown();
+        uploadStage.shutdown();
+        cleanupStage.shutdown();
+    }
+
+    /**
+     * Queue a completed study for processing, waiting if the first pipeline
+     * stage is full. Called by the {@link StudyScheduler}.
+     * @param study the completed study
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void process(CompletedStudy study) throws InterruptedException {
+        Objects.requireNonNull(study, "null study");
+        parseStage.submit(new StudyJob(study));
+    }
+
+    /**
+     * Returns the number of studies queued or in progress in any pipeline
+     * stage.
+     * @return the number of studies in the pipeline
+     */
+    public int getInProgressCount() {
+        return parseStage.size() + archiveStage.size() + uploadStage.size() + cleanupStage.size();
+    }
+
+    private PipelineStage<StudyJob> createStage(String name, Function<StudyJob, CompletableFuture<Boolean>> action,
+      PipelineStage<StudyJob> next) {
+        Config.StageConfig stage = config.getPipelineStage(name);
+        return new PipelineStage<>(name, stage.getThreads(), Math.max(stage.getThreads(), stage.getMaxInFlight()),
+          stage.getQueueCapacity(), config.isVirtualThreads(), released(traced(name, action, next == null)), next,
+          meterRegistry);
+    }
+
+    // Run a blocking stage action on the stage's worker thread
+    private static Function<StudyJob, CompletableFuture<Boolean>> synchronous(Predicate<StudyJob> action) {
+        return job -> CompletableFuture.completedFuture(action.test(job));
+    }
+
+    // Record the start and end of a stage in the study lifecycle trace, and
+    // the end of processing when the study fails or leaves the last stage.
+    private Function<StudyJob, CompletableFuture<Boolean>> traced(String stage,
+      Function<StudyJob, CompletableFuture<Boolean>> action, boolean lastStage) {
+        return job -> {
+            String id = job.study.getId();
+            tracer.record(id, stage + StudyTrace.START);
+            CompletableFuture<Boolean> result;
+            try {
+                result = action.apply(job);
+            } catch (RuntimeException e) {
+                result = new CompletableFuture<>();
+                result.completeExceptionally(e);
+            }
+            return result.whenComplete((success, error) -> {
+                tracer.record(id, stage + StudyTrace.END);
+                boolean failed = error != null || !Boolean.TRUE.equals(success);
+                if (failed || lastStage)
+                    tracer.finished(id, !failed);
+            });
+        };
+    }
+
+    // Release the study's archive reservation when a stage fails, so its
+    // instances are archived again if they arrive again
+    private Function<StudyJob, CompletableFuture<Boolean>> released(
+      Function<StudyJob, CompletableFuture<Boolean>> action) {
+        return job -> action.apply(job).whenComplete((success, error) -> {
+            boolean failed = error != null || !Boolean.TRUE.equals(success);
+            if (failed && job.reserved) {
+                job.reserved = false;
+                finalizedStudies.failed(job.study);
+            }
+        });
+    }
+
+    // Reserve the study's archive and create metadata file. For a study
+    // finalized before, instances already archived are dropped, and the
+    // metadata lists the previously archived instances followed by the new
+    // ones.
+    private boolean parse(StudyJob job) {
+        List<MetaData.Instance> received;
         try {
-            Attributes attributes = Util.parseDir(studyDir);
-            metaData = new MetaData(attributes);
+            received = instances(job.studyDir, job.study.getId());
         } catch (IOException e) {
-            LOG.error("unable to parse dicom attributes from study directory: " + studyDir);
-            return;
+            LOG.error("unable to list instances in study directory: " + job.studyDir, e);
+            return false;
         }
+        FinalizedStudies.Reservation reservation = finalizedStudies.reserve(job.study, received);
+        job.instances = reservation.getNewInstances();
+        if (job.instances.isEmpty()) {
+            LOG.info("no new instances for study {}, nothing to upload", job.study.getStudyUid());
+            job.skipped = true;
+            return true;
+        }
+        job.reserved = true;
+        if (job.instances.size() < received.size() && !dropArchived(job))
+            return false;
+        if (reservation.getBaseArchiveId() != null)
+            LOG.info("uploading {} late instances of study {} as delta of archive {}", job.instances.size(),
+              job.study.getStudyUid(), reservation.getBaseArchiveId());
+        MetaData metaData = null;
         try {
-            this.objectMapper.writeValue(metaFile.toFile(), metaData);
+            Attributes attributes = Util.parseDir(job.studyDir);
+            metaData = new MetaData(attributes, job.study.getId(), reservation.getBaseArchiveId(),
+              reservation.getAllInstances());
         } catch (IOException e) {
-            LOG.error("unable to write metadata file: " + metaFile, e);
-            return;
+            LOG.error("unable to parse dicom attributes from study directory: " + job.studyDir);
+            return false;
         }
+        MessageDigest md5 = Util.md5();
+        try (OutputStream out = new DigestOutputStream(Files.newOutputStream(job.metaFile), md5)) {
+            this.objectMapper.writeValue(out, metaData);
+        } catch (IOException e) {
+            LOG.error("unable to write metadata file: " + job.metaFile, e);
+            return false;
+        }
+        job.metaMd5 = md5.digest();
+        return true;
+    }
 
-        // Zip study directory
-        try {
-            Util.zipDir(studyDir, zipFile);
+    // Delete the dicom files of instances in an earlier archive of the study,
+    // and their checksum files
+    private static boolean dropArchived(StudyJob job) {
+        Set<String> reserved = job.instances.stream().map(MetaData.Instance::getSopInstanceUid)
+          .collect(Collectors.toSet());
+        try (Stream<Path> files = Files.list(job.studyDir)) {
+            List<Path> duplicates = files.filter(Util::isDicomFile)
+              .filter(path -> !reserved.contains(instanceUid(path))).collect(Collectors.toList());
+            for (Path duplicate : duplicates) {
+                Files.delete(duplicate);
+                Files.deleteIfExists(Checksums.checksumFile(duplicate));
+            }
+            if (!duplicates.isEmpty())
+                LOG.info("dropped {} instances of study {} already archived", duplicates.size(),
+                  job.study.getStudyUid());
+            return true;
         } catch (IOException e) {
-            LOG.error("unable to zip directory '" + studyDir + "' to '" + zipFile + "'", e);
-            return;
+            LOG.error("unable to drop archived instances from study directory: " + job.studyDir, e);
+            return false;
         }
+    }
 
-        // Copy zip to S3
-        s3.putObject(
-          config.getStorageBucket(),
-          Config.FILES_BUCKET_PREFIX + zipFile.getFileName().toString(),
-          zipFile.toFile()
-        );
-        // Copy metadata file to S3
-        s3.putObject(
-          config.getStorageBucket(),
-          Config.METADATA_BUCKET_PREFIX + metaFile.getFileName().toString(),
-          metaFile.toFile()
-        );
-
-        // delete metadata file
-        try {
-            Files.delete(metaFile);
-        } catch(IOException e) {
-            LOG.error("unable to delete metadata file: " + metaFile, e);
+    // List the dicom files of a study directory with their checksums
+    private static List<MetaData.Instance> instances(Path studyDir, String archiveId) throws IOException {
+        try (Stream<Path> files = Files.list(studyDir)) {
+            List<Path> dicomFiles = files.filter(Util::isDicomFile).sorted().collect(Collectors.toList());
+            List<MetaData.Instance> instances = new ArrayList<>(dicomFiles.size());
+            for (Path dicomFile : dicomFiles) {
+                String iuid = instanceUid(dicomFile);
+                Path sumFile = Checksums.checksumFile(dicomFile);
+                if (Files.exists(sumFile)) {
+                    Checksums checksums = Checksums.read(sumFile);
+                    instances.add(new MetaData.Instance(iuid, archiveId, checksums.getSize(), checksums.getCrc32Hex(),
+                      checksums.getSha256()));
+                } else {
+                    instances.add(new MetaData.Instance(iuid, archiveId, Files.size(dicomFile), null, null));
+                }
+            }
+            return instances;
         }
-        // delete zip file
+    }
+
+    // Instance UID of a dicom file named like <instance UID>.dcm
+    private static String instanceUid(Path dicomFile) {
+        String name = dicomFile.getFileName().toString();
+        return name.substring(0, name.length() - Config.DCM_EXT.length());
+    }
+
+    // Zip study directory
+    private boolean archive(StudyJob job) {
+        if (job.skipped)
+            return true;
         try {
-            Files.delete(zipFile);
-        } catch(IOException e) {
-            LOG.error("unable to delete zip file: " + zipFile, e);
+            job.zipMd5 = Util.zipDir(job.studyDir, job.zipFile);
+        } catch (IOException e) {
+            LOG.error("unable to zip directory '" + job.studyDir + "' to '" + job.zipFile + "'", e);
+            return false;
+        }
+        return true;
+    }
+
+    // Upload zip, then metadata file, to the object store
+    private CompletableFuture<Boolean> upload(StudyJob job) {
+        if (job.skipped)
+            return CompletableFuture.completedFuture(true);
+        return putObject(Config.FILES_BUCKET_PREFIX + job.zipFile.getFileName().toString(), job.zipFile, job.zipMd5)
+          .thenCompose(x -> putObject(Config.METADATA_BUCKET_PREFIX + job.metaFile.getFileName().toString(),
+            job.metaFile, job.metaMd5))
+          .handle((x, error) -> {
+              if (error != null) {
+                  LOG.error("unable to upload study: " + job.studyDir, error);
+                  return false;
+              }
+              job.reserved = false;
+              finalizedStudies.uploaded(job.study);
+              return true;
+          });
+    }
+
+    // Upload a file, paced chunk by chunk by the shared upload rate limiter
+    // inside the object store sink
+    private CompletableFuture<Void> putObject(String key, Path file, byte[] contentMd5) {
+        return objectStore.put(key, file, contentMd5);
+    }
+
+    private boolean cleanup(StudyJob job) {
+        if (!job.skipped) {
+            // delete metadata file
+            try {
+                Files.delete(job.metaFile);
+            } catch(IOException e) {
+                LOG.error("unable to delete metadata file: " + job.metaFile, e);
+            }
+            // delete zip file
+            try {
+                Files.delete(job.zipFile);
+            } catch(IOException e) {
+                LOG.error("unable to delete zip file: " + job.zipFile, e);
+            }
         }
         // delete study directory
         try {
-            FileSystemUtils.deleteRecursively(studyDir);
+            FileSystemUtils.deleteRecursively(job.studyDir);
         } catch(IOException e) {
-            LOG.error("unable to delete study directory: " + studyDir, e);
+            LOG.error("unable to delete study directory: " + job.studyDir, e);
+        }
+        return true;
+    }
+
+    // A completed study passing through the pipeline stages.
+    private static class StudyJob {
+        final CompletedStudy study;
+        final Path studyDir;
+        final Path metaFile;
+        final Path zipFile;
+        // Instances to upload, set by the parse stage
+        volatile List<MetaData.Instance> instances;
+        // Whether all instances were archived before, set by the parse stage
+        volatile boolean skipped;
+        // Whether the study's archive is reserved and not yet uploaded
+        volatile boolean reserved;
+        // MD5 of the metadata file, set by the parse stage
+        volatile byte[] metaMd5;
+        // MD5 of the zip archive, set by the archive stage
+        volatile byte[] zipMd5;
+
+        StudyJob(CompletedStudy study) {
+            this.study = study;
+            this.studyDir = study.getPath();
+            String studyDirName = studyDir.getFileName().toString(); //uuid value
+            this.metaFile = studyDir.getParent().resolve(studyDirName + Config.TXT_EXT);
+            this.zipFile = studyDir.getParent().resolve(studyDirName + Config.ZIP_EXT);
         }
     }
 }
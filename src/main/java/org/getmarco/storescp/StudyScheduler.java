@@ -0,0 +1,215 @@
+package org.getmarco.storescp;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class schedules completed studies for processing by the
+ * {@link StudyProcessor}. Studies are assigned to priority classes by the
+ * configured priority rules, and higher priority classes are always processed
+ * first. Within a class, processing is shared between calling AE Titles by
+ * weighted fair queuing on study size, so a sender with a large backlog can't
+ * starve the others. A single dispatcher thread hands the next study to the
+ * processing pipeline whenever its first stage has room, so the order in which
+ * studies are processed is decided here rather than in the pipeline queues.
+ * While the storage volume is above its disk high watermark, the largest
+ * queued study is processed first regardless of priority, to free disk space
+ * as fast as possible.
+ */
+@Component
+public class StudyScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(StudyScheduler.class);
+
+    @Autowired
+    private Config config;
+    @Autowired
+    private StudyProcessor processor;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private StudyTracer tracer;
+    @Autowired
+    private DiskSpaceMonitor diskSpaceMonitor;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    // Priority classes by descending priority
+    private final Map<Integer, Map<String, PriorityClass>> classes = new TreeMap<>(Comparator.reverseOrder());
+    private long sequence;
+    // Study taken from the queue and being handed to the processing pipeline
+    private volatile QueuedStudy dispatching;
+    private ExecutorService dispatcher;
+
+    @PostConstruct
+    public void start() {
+        dispatcher = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("scp-dispatch-"));
+        dispatcher.execute(this::dispatch);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        dispatcher.shutdownNow();
+        dispatcher.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Queue a completed study for processing.
+     * @param study the completed study
+     */
+    public void submit(CompletedStudy study) {
+        Config.PriorityRule rule = config.getPriorityRule(study);
+        lock.lock();
+        try {
+            PriorityClass priorityClass = classes.computeIfAbsent(rule.getPriority(), x -> new HashMap<>())
+              .computeIfAbsent(rule.getName(), PriorityClass::new);
+            priorityClass.add(study);
+            tracer.record(study.getId(), StudyTrace.QUEUE_ENTER);
+            LOG.info("queued study {} ({} bytes) from {} in priority class {}", study.getStudyUid(), study.getSize(),
+              study.getCallingAET(), rule.getName());
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of completed studies waiting for processing,
+     * including a study taken from the queue but not yet accepted by the
+     * processing pipeline.
+     * @return the number of queued studies
+     */
+    public int getQueuedCount() {
+        lock.lock();
+        try {
+            return classes.values().stream().flatMap(x -> x.values().stream()).mapToInt(x -> x.queue.size()).sum()
+              + (dispatching == null ? 0 : 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Take the next study to process: the one with the smallest finish tag in
+    // the highest priority class that has studies waiting. Classes with the
+    // same priority are served in the order their head studies were queued.
+    private QueuedStudy take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (diskSpaceMonitor.isOverloaded()) {
+                    PriorityClass largest = classes.values().stream().flatMap(x -> x.values().stream())
+                      .filter(x -> !x.queue.isEmpty())
+                      .max(Comparator.comparingLong(x -> x.largest().study.getSize())).orElse(null);
+                    if (largest != null)
+                        return dispatching = largest.poll(largest.largest());
+                }
+                for (Map<String, PriorityClass> samePriority : classes.values()) {
+                    PriorityClass next = samePriority.values().stream().filter(x -> !x.queue.isEmpty())
+                      .min(Comparator.comparingLong(x -> x.queue.peek().sequence)).orElse(null);
+                    if (next != null)
+                        return dispatching = next.poll();
+                }
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                processor.process(take().study);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                dispatching = null;
+            }
+        }
+    }
+
+    // A study waiting in a priority class queue.
+    private static class QueuedStudy implements Comparable<QueuedStudy> {
+        final CompletedStudy study;
+        final double startTag;
+        final double finishTag;
+        final long sequence;
+        final long enqueued = System.nanoTime();
+
+        QueuedStudy(CompletedStudy study, double startTag, double finishTag, long sequence) {
+            this.study = study;
+            this.startTag = startTag;
+            this.finishTag = finishTag;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(QueuedStudy other) {
+            int result = Double.compare(finishTag, other.finishTag);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    // Queue of a priority class. Each study gets a virtual finish tag of
+    // start + size / weight, where start is the later of the class virtual
+    // time and the finish tag of the previous study from the same calling AE
+    // Title; studies are taken in finish tag order.
+    private class PriorityClass {
+        final PriorityQueue<QueuedStudy> queue = new PriorityQueue<>();
+        final Map<String, Double> lastFinishTags = new HashMap<>();
+        final Timer waitTimer;
+        double virtualTime;
+
+        PriorityClass(String name) {
+            this.waitTimer = Timer.builder("storescp.scheduler.queue.wait")
+              .description("time completed studies wait for processing")
+              .tag("class", name).register(meterRegistry);
+            Gauge.builder("storescp.scheduler.queue.size", this, x -> x.queue.size())
+              .description("completed studies waiting for processing")
+              .tag("class", name).register(meterRegistry);
+        }
+
+        void add(CompletedStudy study) {
+            String callingAET = study.getCallingAET();
+            double startTag = Math.max(virtualTime, lastFinishTags.getOrDefault(callingAET, 0d));
+            double finishTag = startTag + (double) Math.max(1, study.getSize()) / config.getCallingAetitleWeight(callingAET);
+            lastFinishTags.put(callingAET, finishTag);
+            queue.add(new QueuedStudy(study, startTag, finishTag, sequence++));
+        }
+
+        QueuedStudy largest() {
+            return queue.stream().max(Comparator.comparingLong(x -> x.study.getSize())).orElse(null);
+        }
+
+        QueuedStudy poll() {
+            return poll(queue.peek());
+        }
+
+        QueuedStudy poll(QueuedStudy next) {
+            queue.remove(next);
+            virtualTime = Math.max(virtualTime, next.startTag);
+            tracer.record(next.study.getId(), StudyTrace.QUEUE_EXIT);
+            waitTimer.record(System.nanoTime() - next.enqueued, TimeUnit.NANOSECONDS);
+            return next;
+        }
+    }
+}
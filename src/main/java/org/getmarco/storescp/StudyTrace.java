@@ -0,0 +1,118 @@
+package org.getmarco.storescp;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timestamped lifecycle of a single study, from the first received instance
+ * until its processing has finished. Events are recorded by name; events named
+ * '&lt;stage&gt;.start' and '&lt;stage&gt;.end' give the duration of a stage.
+ */
+public class StudyTrace {
+    public static final String FIRST_INSTANCE = "instance.first";
+    public static final String LAST_INSTANCE = "instance.last";
+    public static final String COMPLETED = "completed";
+    public static final String QUEUE_ENTER = "queue.enter";
+    public static final String QUEUE_EXIT = "queue.exit";
+    public static final String FINISHED = "finished";
+    public static final String START = ".start";
+    public static final String END = ".end";
+
+    /** Duration from first to last received instance */
+    public static final String RECEIVE_DURATION = "receive";
+    /** Duration from last received instance to completion detection */
+    public static final String COMPLETION_WAIT_DURATION = "completionWait";
+    /** Duration waiting in the scheduler queue */
+    public static final String QUEUE_DURATION = "queue";
+    /** Duration from first received instance until processing finished */
+    public static final String TOTAL_DURATION = "total";
+
+    private final String calledAET;
+    private final String callingAET;
+    private final String studyUid;
+    private final Map<String, Long> events = new LinkedHashMap<>();
+    private String id;
+    private int instances;
+    private Boolean success;
+
+    public StudyTrace(String calledAET, String callingAET, String studyUid) {
+        this.calledAET = calledAET;
+        this.callingAET = callingAET;
+        this.studyUid = studyUid;
+    }
+
+    synchronized void instanceReceived(long time) {
+        events.putIfAbsent(FIRST_INSTANCE, time);
+        events.put(LAST_INSTANCE, time);
+        instances++;
+    }
+
+    synchronized void setId(String id) {
+        this.id = id;
+    }
+
+    synchronized void record(String event, long time) {
+        events.put(event, time);
+    }
+
+    synchronized void finish(boolean success, long time) {
+        this.success = success;
+        events.put(FINISHED, time);
+    }
+
+    /**
+     * Returns the duration of a stage of the study lifecycle.
+     * @param stage a pipeline stage name, or one of the receive, completion
+     *              wait, queue or total durations
+     * @return the duration in milliseconds, or -1 if not (yet) available
+     */
+    public synchronized long getDuration(String stage) {
+        switch (stage) {
+            case RECEIVE_DURATION:
+                return between(FIRST_INSTANCE, LAST_INSTANCE);
+            case COMPLETION_WAIT_DURATION:
+                return between(LAST_INSTANCE, COMPLETED);
+            case QUEUE_DURATION:
+                return between(QUEUE_ENTER, QUEUE_EXIT);
+            case TOTAL_DURATION:
+                return between(FIRST_INSTANCE, FINISHED);
+            default:
+                return between(stage + START, stage + END);
+        }
+    }
+
+    /**
+     * Produces display information about the study lifecycle: the recorded
+     * events and the durations of each stage.
+     * @return mapping of display information
+     */
+    public synchronized Map<String, Object> describe() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("id", id);
+        map.put("studyUid", studyUid);
+        map.put("calledAET", calledAET);
+        map.put("callingAET", callingAET);
+        map.put("instances", instances);
+        map.put("success", success);
+        Map<String, String> times = new LinkedHashMap<>();
+        events.forEach((event, time) -> times.put(event, Instant.ofEpochMilli(time).toString()));
+        map.put("events", times);
+        Map<String, Long> durations = new LinkedHashMap<>();
+        durations.put(RECEIVE_DURATION, getDuration(RECEIVE_DURATION));
+        durations.put(COMPLETION_WAIT_DURATION, getDuration(COMPLETION_WAIT_DURATION));
+        durations.put(QUEUE_DURATION, getDuration(QUEUE_DURATION));
+        events.keySet().stream().filter(event -> event.endsWith(START))
+          .map(event -> event.substring(0, event.length() - START.length()))
+          .forEach(stage -> durations.put(stage, getDuration(stage)));
+        durations.put(TOTAL_DURATION, getDuration(TOTAL_DURATION));
+        map.put("durations", durations);
+        return map;
+    }
+
+    private long between(String from, String to) {
+        Long start = events.get(from);
+        Long end = events.get(to);
+        return start == null || end == null ? -1 : end - start;
+    }
+}
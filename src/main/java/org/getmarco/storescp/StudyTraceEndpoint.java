@@ -0,0 +1,63 @@
+package org.getmarco.storescp;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Custom spring boot actuator (management) endpoint class to display the
+ * lifecycle of recent studies, with a breakdown of where the time went
+ * (receive, completion wait, queue, and each processing stage).
+ */
+@Component
+@Endpoint(id = "studytrace")
+public class StudyTraceEndpoint {
+
+    public static final String IN_PROGRESS_KEY = "inProgress";
+    public static final String RECENT_KEY = "recent";
+    /** Default number of studies returned by a slowest-N query */
+    public static final int DEFAULT_LIMIT = 10;
+
+    @Autowired
+    private StudyTracer tracer;
+
+    /**
+     * Produces display information about the lifecycle of studies being
+     * received or processed, and of recently finished studies
+     * @return mapping of display information
+     */
+    @ReadOperation
+    public Map<String, ? extends Object> studies() {
+        Map<String, List<Map<String, Object>>> map = new LinkedHashMap<>();
+        map.put(IN_PROGRESS_KEY, tracer.getInProgress().stream().map(StudyTrace::describe).collect(Collectors.toList()));
+        map.put(RECENT_KEY, tracer.getRecent().stream().map(StudyTrace::describe).collect(Collectors.toList()));
+        return map;
+    }
+
+    /**
+     * Produces display information about the recently finished studies that
+     * spent the longest time in a given stage, like
+     * /actuator/studytrace/upload?limit=5
+     * @param stage a processing stage name, or receive, completionWait, queue or total
+     * @param limit the number of studies to return
+     * @return display information of the slowest studies, slowest first
+     */
+    @ReadOperation
+    public List<Map<String, Object>> slowest(@Selector String stage, @Nullable Integer limit) {
+        return tracer.getRecent().stream()
+          .filter(trace -> trace.getDuration(stage) >= 0)
+          .sorted(Comparator.comparingLong((StudyTrace trace) -> trace.getDuration(stage)).reversed())
+          .limit(limit == null ? DEFAULT_LIMIT : limit)
+          .map(StudyTrace::describe)
+          .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,110 @@
+package org.getmarco.storescp;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps the lifecycle traces of studies. Studies still being
+ * received are traced by called AE Title, calling AE Title and study UID;
+ * once complete they are traced by the id of their processing work area
+ * directory. Traces of finished studies are kept in a bounded history of
+ * recent studies.
+ */
+@Component
+public class StudyTracer {
+
+    @Autowired
+    private Config config;
+
+    private final Map<String, StudyTrace> receiving = new ConcurrentHashMap<>();
+    private final Map<String, StudyTrace> processing = new ConcurrentHashMap<>();
+    private final Deque<StudyTrace> recent = new ArrayDeque<>();
+
+    /**
+     * Record a received instance of a study.
+     * @param calledAET the local AE Title the study is sent to
+     * @param callingAET the remote AE Title sending the study
+     * @param studyUid the study UID
+     */
+    public void instanceReceived(String calledAET, String callingAET, String studyUid) {
+        receiving.computeIfAbsent(key(calledAET, callingAET, studyUid), x -> new StudyTrace(calledAET, callingAET, studyUid))
+          .instanceReceived(System.currentTimeMillis());
+    }
+
+    /**
+     * Record that a study was found complete and moved to its processing
+     * work area directory. From here on the study is traced by that id.
+     * @param calledAET the local AE Title the study was sent to
+     * @param callingAET the remote AE Title that sent the study
+     * @param studyUid the study UID
+     * @param id the name of the processing work area directory
+     */
+    public void completed(String calledAET, String callingAET, String studyUid, String id) {
+        StudyTrace trace = receiving.remove(key(calledAET, callingAET, studyUid));
+        if (trace == null)
+            trace = new StudyTrace(calledAET, callingAET, studyUid);
+        trace.setId(id);
+        trace.record(StudyTrace.COMPLETED, System.currentTimeMillis());
+        processing.put(id, trace);
+    }
+
+    /**
+     * Record a lifecycle event of a study being processed.
+     * @param id the name of the processing work area directory
+     * @param event the event name
+     */
+    public void record(String id, String event) {
+        StudyTrace trace = processing.get(id);
+        if (trace != null)
+            trace.record(event, System.currentTimeMillis());
+    }
+
+    /**
+     * Record that processing of a study has finished, and move its trace to
+     * the history of recent studies.
+     * @param id the name of the processing work area directory
+     * @param success whether the study was processed successfully
+     */
+    public void finished(String id, boolean success) {
+        StudyTrace trace = processing.remove(id);
+        if (trace == null)
+            return;
+        trace.finish(success, System.currentTimeMillis());
+        synchronized (recent) {
+            recent.addFirst(trace);
+            while (recent.size() > config.getTraceHistorySize())
+                recent.removeLast();
+        }
+    }
+
+    /**
+     * Returns the traces of studies being received or processed.
+     * @return the in-progress traces
+     */
+    public List<StudyTrace> getInProgress() {
+        List<StudyTrace> list = new ArrayList<>(receiving.values());
+        list.addAll(processing.values());
+        return list;
+    }
+
+    /**
+     * Returns the traces of recently finished studies, most recent first.
+     * @return the recent traces
+     */
+    public List<StudyTrace> getRecent() {
+        synchronized (recent) {
+            return new ArrayList<>(recent);
+        }
+    }
+
+    private static String key(String calledAET, String callingAET, String studyUid) {
+        return calledAET + '/' + callingAET + '/' + studyUid;
+    }
+}
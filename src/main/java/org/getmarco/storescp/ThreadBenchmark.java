@@ -0,0 +1,259 @@
+package org.getmarco.storescp;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.PDVInputStream;
+import org.dcm4che3.net.Priority;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.TransferCapability;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.BasicCStoreSCP;
+import org.dcm4che3.net.service.DicomServiceRegistry;
+import org.dcm4che3.util.UIDUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command line tool comparing platform and virtual threads for running dicom
+ * associations. The same load, concurrent associations each sending
+ * synthetic instances of a given size, is sent over loopback to a C-STORE SCP
+ * writing every instance to a temporary file, first with the SCP's
+ * associations on platform threads and then on virtual threads, the way
+ * {@link Starter} runs them. The sending side always runs on platform threads,
+ * so only the receiving side differs between runs. Reports throughput,
+ * C-STORE latency and the peak number of platform threads for each mode.
+ * Virtual threads are skipped on JDKs without them. Run with:
+ * ./gradlew threadBenchmark -PmodernJavaHome=/path/to/jdk21 [-Passociations=200] [-Pinstances=20] [-Psize=524288]
+ */
+public class ThreadBenchmark {
+    private static final Logger LOG = LoggerFactory.getLogger(ThreadBenchmark.class);
+
+    private static final String SCP_AET = "BENCH-SCP";
+    private static final String SCU_AET = "BENCH-SCU";
+
+    private final int associations;
+    private final int instances;
+    private final int size;
+
+    public ThreadBenchmark(int associations, int instances, int size) {
+        if (associations <= 0 || instances <= 0 || size < 0)
+            throw new IllegalArgumentException("invalid load: " + associations + " associations, " + instances
+              + " instances of " + size + " bytes");
+        this.associations = associations;
+        this.instances = instances;
+        this.size = size;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int associations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int instances = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 512 * 1024;
+        ThreadBenchmark benchmark = new ThreadBenchmark(associations, instances, size);
+        List<Result> results = new ArrayList<>();
+        // Warm up the JIT and the dcm4che code paths, the result is dropped
+        benchmark.run(false);
+        results.add(benchmark.run(false));
+        if (Threads.isVirtualThreadSupported())
+            results.add(benchmark.run(true));
+        else
+            LOG.warn("virtual threads not supported by this JDK (needs 21+): {}", System.getProperty("java.version"));
+        System.out.printf("%d associations x %d instances x %d bytes, java %s%n", associations, instances, size,
+          System.getProperty("java.version"));
+        System.out.printf("%-10s %10s %12s %10s %12s %12s %8s%n", "threads", "time ms", "instances/s", "MB/s",
+          "mean ms", "max ms", "peak");
+        for (Result result : results)
+            System.out.println(result);
+    }
+
+    /**
+     * Send the benchmark load to a local SCP running its associations on
+     * platform or virtual threads.
+     * @param virtual whether the SCP runs associations on virtual threads
+     * @return the measured result
+     * @throws Exception if the SCP can't be started
+     */
+    public Result run(boolean virtual) throws Exception {
+        Path dir = Files.createTempDirectory("storescp-bench-");
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Device scp = createScp(port, dir, virtual);
+        Device scu = new Device("bench-scu");
+        Connection scuConn = new Connection();
+        scu.addConnection(scuConn);
+        ApplicationEntity scuAE = new ApplicationEntity(SCU_AET);
+        scu.addApplicationEntity(scuAE);
+        scuAE.addConnection(scuConn);
+        ExecutorService scuExecutor = Executors.newCachedThreadPool();
+        ScheduledExecutorService scuScheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        scu.setExecutor(scuExecutor);
+        scu.setScheduledExecutor(scuScheduledExecutor);
+        ExecutorService senders = Executors.newFixedThreadPool(associations);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        AtomicLong latency = new AtomicLong();
+        AtomicLong maxLatency = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        try {
+            scp.bindConnections();
+            Connection remote = new Connection(null, "localhost", port);
+            threads.resetPeakThreadCount();
+            long start = System.nanoTime();
+            List<Future<?>> sent = new ArrayList<>();
+            for (int i = 0; i < associations; i++)
+                sent.add(senders.submit(() -> send(scuAE, remote, latency, maxLatency, failed)));
+            for (Future<?> future : sent)
+                future.get();
+            long elapsed = System.nanoTime() - start;
+            Result result = new Result(virtual ? "virtual" : "platform", elapsed, (long) associations * instances,
+              failed.get(), (long) associations * instances * size, latency.get(), maxLatency.get(),
+              threads.getPeakThreadCount());
+            LOG.info("benchmark result: {}", result);
+            return result;
+        } finally {
+            senders.shutdownNow();
+            scp.unbindConnections();
+            ((ExecutorService) scp.getExecutor()).shutdownNow();
+            scp.getScheduledExecutor().shutdownNow();
+            scuExecutor.shutdownNow();
+            scuScheduledExecutor.shutdownNow();
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // C-STORE SCP writing every instance to a temporary file, deleted right
+    // after, with associations run on the given kind of threads
+    private static Device createScp(int port, Path dir, boolean virtual) {
+        Device device = new Device("bench-scp");
+        Connection conn = new Connection(null, "localhost", port);
+        device.addConnection(conn);
+        ApplicationEntity ae = new ApplicationEntity(SCP_AET);
+        device.addApplicationEntity(ae);
+        ae.addConnection(conn);
+        ae.setAssociationAcceptor(true);
+        ae.addTransferCapability(new TransferCapability(null, "*", TransferCapability.Role.SCP, "*"));
+        DicomServiceRegistry registry = new DicomServiceRegistry();
+        registry.addDicomService(new BasicCStoreSCP() {
+            @Override
+            protected void store(Association as, PresentationContext pc, Attributes rq, PDVInputStream data,
+              Attributes rsp) throws IOException {
+                Path file = Files.createTempFile(dir, "instance-", Config.DCM_EXT);
+                try (OutputStream out = Files.newOutputStream(file)) {
+                    data.copyTo(out);
+                } finally {
+                    Files.delete(file);
+                }
+            }
+        });
+        device.setDimseRQHandler(registry);
+        device.setExecutor(Threads.newExecutor("bench-assoc-", virtual));
+        device.setScheduledExecutor(Executors.newSingleThreadScheduledExecutor());
+        return device;
+    }
+
+    // Send the instances of one association, recording C-STORE latency
+    private void send(ApplicationEntity ae, Connection remote, AtomicLong latency, AtomicLong maxLatency,
+      AtomicLong failed) {
+        AAssociateRQ rq = new AAssociateRQ();
+        rq.setCallingAET(SCU_AET);
+        rq.setCalledAET(SCP_AET);
+        rq.addPresentationContext(new PresentationContext(1, UID.SecondaryCaptureImageStorage,
+          UID.ExplicitVRLittleEndian));
+        Association as;
+        try {
+            as = ae.connect(remote, rq);
+        } catch (Exception e) {
+            LOG.error("unable to open association", e);
+            failed.addAndGet(instances);
+            return;
+        }
+        int i = 0;
+        try {
+            for (; i < instances; i++) {
+                String iuid = UIDUtils.createUID();
+                Attributes attrs = new Attributes();
+                attrs.setString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+                attrs.setString(Tag.SOPInstanceUID, VR.UI, iuid);
+                attrs.setString(TraceReplay.FILLER_CREATOR_TAG, VR.LO, TraceReplay.FILLER_CREATOR);
+                long start = System.nanoTime();
+                DimseRSP rsp = as.cstore(UID.SecondaryCaptureImageStorage, iuid, Priority.NORMAL,
+                  new TraceReplay.FillerDataWriter(attrs, size & ~1), UID.ExplicitVRLittleEndian);
+                rsp.next();
+                long elapsed = System.nanoTime() - start;
+                latency.addAndGet(elapsed);
+                maxLatency.accumulateAndGet(elapsed, Math::max);
+                if (rsp.getCommand().getInt(Tag.Status, -1) != Status.Success)
+                    failed.incrementAndGet();
+            }
+        } catch (Exception e) {
+            LOG.error("unable to send instance", e);
+            failed.addAndGet(instances - i);
+        } finally {
+            try {
+                as.release();
+                as.waitForSocketClose();
+            } catch (Exception e) {
+                LOG.warn("{}: unable to release association", as, e);
+            }
+        }
+    }
+
+    /**
+     * Measured result of one benchmark run.
+     */
+    public static class Result {
+        private final String threads;
+        private final long elapsed;
+        private final long instances;
+        private final long failed;
+        private final long bytes;
+        private final long totalLatency;
+        private final long maxLatency;
+        private final int peakThreads;
+
+        Result(String threads, long elapsed, long instances, long failed, long bytes, long totalLatency,
+          long maxLatency, int peakThreads) {
+            this.threads = threads;
+            this.elapsed = elapsed;
+            this.instances = instances;
+            this.failed = failed;
+            this.bytes = bytes;
+            this.totalLatency = totalLatency;
+            this.maxLatency = maxLatency;
+            this.peakThreads = peakThreads;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsed / 1e9;
+            return String.format("%-10s %10d %12.1f %10.1f %12.2f %12.2f %8d%s", threads,
+              TimeUnit.NANOSECONDS.toMillis(elapsed), instances / seconds, bytes / seconds / 1e6,
+              totalLatency / 1e6 / instances, maxLatency / 1e6, peakThreads,
+              failed == 0 ? "" : " (" + failed + " failed)");
+        }
+    }
+}
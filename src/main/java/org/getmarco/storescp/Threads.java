@@ -0,0 +1,86 @@
+package org.getmarco.storescp;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads running dicom associations and study processing, as
+ * platform threads or, when running on a JDK with virtual threads (21+), as
+ * virtual threads. The project is built for Java 8, so the virtual thread API
+ * is looked up reflectively.
+ *
+ * Virtual threads are pinned to their carrier thread while blocking inside a
+ * synchronized block, so the blocking paths of receiving and processing
+ * studies use {@link java.util.concurrent.locks.Lock Lock}s instead.
+ */
+public class Threads {
+    private Threads() {
+        // It's a utility method class
+        throw new AssertionError("No Threads instances for you!");
+    }
+
+    /**
+     * Check whether the running JDK supports virtual threads.
+     * @return whether virtual threads are available
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns a thread factory for threads named with a given prefix and a
+     * sequence number.
+     * @param prefix the thread name prefix
+     * @param virtual whether to create virtual threads
+     * @return the thread factory
+     * @throws IllegalStateException if virtual threads are requested but not
+     * supported by the running JDK
+     */
+    public static ThreadFactory threadFactory(String prefix, boolean virtual) {
+        if (!virtual)
+            return new CustomizableThreadFactory(prefix);
+        if (!isVirtualThreadSupported())
+            throw new IllegalStateException("virtual threads enabled but not supported by this JDK (needs 21+): "
+              + System.getProperty("java.version"));
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("virtual threads not supported by this JDK: "
+              + System.getProperty("java.version"), e);
+        }
+    }
+
+    /**
+     * Returns an executor starting a thread per task: reused platform threads,
+     * or a new virtual thread for each task.
+     * @param prefix the thread name prefix
+     * @param virtual whether to run tasks on virtual threads
+     * @return the executor
+     * @throws IllegalStateException if virtual threads are requested but not
+     * supported by the running JDK
+     */
+    public static ExecutorService newExecutor(String prefix, boolean virtual) {
+        ThreadFactory threadFactory = threadFactory(prefix, virtual);
+        if (!virtual)
+            return Executors.newCachedThreadPool(threadFactory);
+        try {
+            Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) method.invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("virtual threads not supported by this JDK: "
+              + System.getProperty("java.version"), e);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package org.getmarco.storescp;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.SSLManagerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyManagementException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class sets up DICOM TLS for the dcm4che device: key and trust
+ * managers, the TLS listening connection, and server side session caching so
+ * modalities opening a new association per image can resume their TLS session
+ * instead of doing a full handshake each time. The device's SSL context is
+ * wrapped to record handshake latency, tagged by direction (inbound for
+ * accepted associations, outbound for associations this application opens)
+ * and whether the session was resumed. Inbound connections are accepted as
+ * plain sockets and layered with TLS by the same instrumented socket factory
+ * as outbound ones, so both are timed the same way.
+ */
+@Component
+public class TlsSupport {
+    private static final Logger LOG = LoggerFactory.getLogger(TlsSupport.class);
+
+    @Autowired
+    private Config config;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private SSLContext source;
+    private SSLContext instrumented;
+
+    /**
+     * Configure the key and trust managers of a device from the TLS keystore
+     * and truststore settings.
+     * @param device the dcm4che device
+     * @throws GeneralSecurityException if the keystore or truststore is invalid
+     * @throws IOException if the keystore or truststore can't be read
+     */
+    public void configureDevice(Device device) throws GeneralSecurityException, IOException {
+        Config.Tls tls = config.getTls();
+        if (!StringUtils.hasText(tls.getKeyStore()))
+            throw new IllegalArgumentException("TLS enabled without key store");
+        device.setKeyManager(SSLManagerFactory.createKeyManager(tls.getKeyStoreType(), tls.getKeyStore(),
+          tls.getKeyStorePassword(), StringUtils.hasText(tls.getKeyPassword()) ? tls.getKeyPassword() : tls.getKeyStorePassword()));
+        if (StringUtils.hasText(tls.getTrustStore()))
+            device.setTrustManager(SSLManagerFactory.createTrustManager(tls.getTrustStoreType(), tls.getTrustStore(),
+              tls.getTrustStorePassword()));
+        SSLSessionContext sessions = device.sslContext().getServerSessionContext();
+        sessions.setSessionCacheSize(tls.getSessionCacheSize());
+        sessions.setSessionTimeout(tls.getSessionTimeout());
+        LOG.info("TLS session cache size: {}, timeout: {}s", tls.getSessionCacheSize(), tls.getSessionTimeout());
+    }
+
+    /**
+     * Apply the TLS settings (cipher suites, protocols, client authentication)
+     * to a connection.
+     * @param conn the listening connection
+     */
+    public void configureConnection(Connection conn) {
+        Config.Tls tls = config.getTls();
+        if (tls.getCipherSuites().isEmpty())
+            throw new IllegalArgumentException("TLS enabled without cipher suites");
+        conn.setTlsCipherSuites(tls.getCipherSuites().toArray(new String[0]));
+        if (!tls.getProtocols().isEmpty())
+            conn.setTlsProtocols(tls.getProtocols().toArray(new String[0]));
+        conn.setTlsNeedClientAuth(tls.isNeedClientAuth());
+    }
+
+    /**
+     * Returns a wrapper of the device's SSL context recording handshake
+     * metrics for the TLS sockets it creates.
+     * @param sslContext the device's SSL context
+     * @return the instrumented SSL context
+     */
+    public synchronized SSLContext instrument(SSLContext sslContext) {
+        if (sslContext != source) {
+            source = sslContext;
+            instrumented = new InstrumentedSSLContext(sslContext, meterRegistry);
+        }
+        return instrumented;
+    }
+
+    private static class InstrumentedSSLContext extends SSLContext {
+        InstrumentedSSLContext(SSLContext delegate, MeterRegistry meterRegistry) {
+            super(new InstrumentedSpi(delegate, meterRegistry), delegate.getProvider(), delegate.getProtocol());
+        }
+    }
+
+    // Delegates to an initialized SSL context, wrapping its socket factories.
+    // Initializing the wrapper initializes the delegate again.
+    private static class InstrumentedSpi extends SSLContextSpi {
+        private final SSLContext delegate;
+        private final MeterRegistry meterRegistry;
+        private volatile SSLSocketFactory socketFactory;
+        private volatile SSLServerSocketFactory serverSocketFactory;
+
+        InstrumentedSpi(SSLContext delegate, MeterRegistry meterRegistry) {
+            this.delegate = delegate;
+            this.meterRegistry = meterRegistry;
+            createFactories();
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom random)
+          throws KeyManagementException {
+            delegate.init(km, tm, random);
+            createFactories();
+        }
+
+        private void createFactories() {
+            InstrumentedSocketFactory instrumented =
+              new InstrumentedSocketFactory(delegate.getSocketFactory(), meterRegistry);
+            socketFactory = instrumented;
+            serverSocketFactory = new LayeringServerSocketFactory(delegate, instrumented);
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            return socketFactory;
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return serverSocketFactory;
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return delegate.createSSLEngine();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port) {
+            return delegate.createSSLEngine(host, port);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return delegate.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return delegate.getClientSessionContext();
+        }
+    }
+
+    // Records the time from layering TLS over a connected socket until the
+    // handshake completes. dcm4che layers TLS over the sockets it opens, and
+    // the LayeringServerSocket over the sockets it accepts, in server mode. A
+    // session created before the handshake started was resumed from the
+    // session cache.
+    private static class InstrumentedSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+        private final Timer inboundFullHandshakes;
+        private final Timer inboundResumedHandshakes;
+        private final Timer outboundFullHandshakes;
+        private final Timer outboundResumedHandshakes;
+
+        InstrumentedSocketFactory(SSLSocketFactory delegate, MeterRegistry meterRegistry) {
+            this.delegate = delegate;
+            this.inboundFullHandshakes = handshakeTimer(meterRegistry, "inbound", false);
+            this.inboundResumedHandshakes = handshakeTimer(meterRegistry, "inbound", true);
+            this.outboundFullHandshakes = handshakeTimer(meterRegistry, "outbound", false);
+            this.outboundResumedHandshakes = handshakeTimer(meterRegistry, "outbound", true);
+        }
+
+        private static Timer handshakeTimer(MeterRegistry meterRegistry, String direction, boolean resumed) {
+            return Timer.builder("storescp.tls.handshake")
+              .description("TLS handshake latency of inbound and outbound connections")
+              .tag("direction", direction)
+              .tag("resumed", String.valueOf(resumed)).register(meterRegistry);
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return instrument(delegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(Socket s, InputStream consumed, boolean autoClose) throws IOException {
+            return instrument(delegate.createSocket(s, consumed, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+          throws IOException {
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        private Socket instrument(Socket socket) {
+            long start = System.nanoTime();
+            long startMillis = System.currentTimeMillis();
+            SSLSocket sslSocket = (SSLSocket) socket;
+            sslSocket.addHandshakeCompletedListener(event -> {
+                boolean resumed = event.getSession().getCreationTime() < startMillis;
+                Timer timer = sslSocket.getUseClientMode()
+                  ? (resumed ? outboundResumedHandshakes : outboundFullHandshakes)
+                  : (resumed ? inboundResumedHandshakes : inboundFullHandshakes);
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            });
+            return socket;
+        }
+    }
+
+    // Creates server sockets accepting plain connections and layering TLS
+    // over them with the instrumented socket factory, with the defaults of
+    // the delegate SSL context.
+    private static class LayeringServerSocketFactory extends SSLServerSocketFactory {
+        private final SSLContext delegate;
+        private final SSLSocketFactory socketFactory;
+
+        LayeringServerSocketFactory(SSLContext delegate, SSLSocketFactory socketFactory) {
+            this.delegate = delegate;
+            this.socketFactory = socketFactory;
+        }
+
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return new LayeringServerSocket(delegate, socketFactory);
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            return createServerSocket(port, 50, null);
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+            return createServerSocket(port, backlog, null);
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress ifAddress) throws IOException {
+            ServerSocket serverSocket = createServerSocket();
+            serverSocket.bind(new InetSocketAddress(ifAddress, port), backlog);
+            return serverSocket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultSSLParameters().getCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedSSLParameters().getCipherSuites();
+        }
+    }
+
+    // Server socket accepting plain connections, and returning them layered
+    // with TLS in server mode with the settings made on the server socket.
+    private static class LayeringServerSocket extends SSLServerSocket {
+        private final SSLContext delegate;
+        private final SSLSocketFactory socketFactory;
+        private volatile String[] cipherSuites;
+        private volatile String[] protocols;
+        private volatile boolean needClientAuth;
+        private volatile boolean wantClientAuth;
+        private volatile boolean useClientMode;
+        private volatile boolean enableSessionCreation = true;
+
+        LayeringServerSocket(SSLContext delegate, SSLSocketFactory socketFactory) throws IOException {
+            this.delegate = delegate;
+            this.socketFactory = socketFactory;
+            this.cipherSuites = delegate.getDefaultSSLParameters().getCipherSuites();
+            this.protocols = delegate.getDefaultSSLParameters().getProtocols();
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            Socket socket = super.accept();
+            SSLSocket sslSocket;
+            try {
+                sslSocket = (SSLSocket) socketFactory.createSocket(socket, null, true);
+                sslSocket.setUseClientMode(useClientMode);
+                sslSocket.setEnabledCipherSuites(cipherSuites);
+                sslSocket.setEnabledProtocols(protocols);
+                if (needClientAuth)
+                    sslSocket.setNeedClientAuth(true);
+                else
+                    sslSocket.setWantClientAuth(wantClientAuth);
+                sslSocket.setEnableSessionCreation(enableSessionCreation);
+            } catch (IOException | RuntimeException e) {
+                socket.close();
+                throw e;
+            }
+            return sslSocket;
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return cipherSuites.clone();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites) {
+            cipherSuites = suites.clone();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedSSLParameters().getCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedProtocols() {
+            return delegate.getSupportedSSLParameters().getProtocols();
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            return protocols.clone();
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols) {
+            this.protocols = protocols.clone();
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need) {
+            needClientAuth = need;
+            wantClientAuth = false;
+        }
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return needClientAuth;
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want) {
+            wantClientAuth = want;
+            needClientAuth = false;
+        }
+
+        @Override
+        public boolean getWantClientAuth() {
+            return wantClientAuth;
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode) {
+            useClientMode = mode;
+        }
+
+        @Override
+        public boolean getUseClientMode() {
+            return useClientMode;
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag) {
+            enableSessionCreation = flag;
+        }
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            return enableSessionCreation;
+        }
+    }
+}
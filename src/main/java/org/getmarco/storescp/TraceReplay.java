@@ -0,0 +1,311 @@
+package org.getmarco.storescp;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.DataWriter;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.PDVOutputStream;
+import org.dcm4che3.net.Priority;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.util.UIDUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command line tool feeding a recorded {@link IngestTrace} into a running
+ * storescp instance, at the recorded pace or sped up. Each recorded
+ * association is replayed as an association of its own, sending its instances
+ * in order and closing when the recorded association closed. Instances are
+ * synthetic: generated study, series and instance UIDs for the anonymized
+ * study and series ids, the recorded SOP class and transfer syntax, and
+ * filler data to match the recorded size. The filler is streamed onto the
+ * association rather than held in memory.
+ *
+ * All traffic is sent with the given AE title pair, which has to be
+ * configured in the receiving instance. Run with:
+ * ./gradlew replayTrace -Ptrace=/tmp/ingest.trace -Ptarget=localhost:11117 -Paets=SCU:SCP -Pspeed=10
+ */
+public class TraceReplay {
+    private static final Logger LOG = LoggerFactory.getLogger(TraceReplay.class);
+
+    // Private data element holding the filler matching the recorded size. Its
+    // group comes after all other attributes of an instance, so it is written
+    // last.
+    static final int FILLER_CREATOR_TAG = 0x00290010;
+    private static final int FILLER_TAG = 0x00291000;
+    static final String FILLER_CREATOR = "STORESCP REPLAY";
+    // Size of the buffer the filler is written from (bytes)
+    private static final int FILLER_BUFFER_SIZE = 64 * 1024;
+
+    private final Connection remote;
+    private final String callingAET;
+    private final String calledAET;
+    private final double speed;
+    private final Device device = new Device("replay");
+    private final ApplicationEntity ae;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final Map<Integer, String> studyUids = new ConcurrentHashMap<>();
+    private final Map<Integer, String> seriesUids = new ConcurrentHashMap<>();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private long maxLag;
+
+    public TraceReplay(String host, int port, String callingAET, String calledAET, double speed) {
+        if (speed <= 0)
+            throw new IllegalArgumentException("invalid speed: " + speed);
+        this.remote = new Connection(null, host, port);
+        this.callingAET = callingAET;
+        this.calledAET = calledAET;
+        this.speed = speed;
+        Connection conn = new Connection();
+        device.addConnection(conn);
+        ae = new ApplicationEntity(callingAET);
+        device.addApplicationEntity(ae);
+        ae.addConnection(conn);
+        device.setExecutor(executor);
+        device.setScheduledExecutor(scheduledExecutor);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("usage: TraceReplay <trace file> <host>:<port> <calling AET> <called AET> [speed]");
+            System.exit(2);
+        }
+        int colon = args[1].lastIndexOf(':');
+        if (colon <= 0)
+            throw new IllegalArgumentException("invalid target, expected <host>:<port>: " + args[1]);
+        String host = args[1].substring(0, colon);
+        int port = Integer.parseInt(args[1].substring(colon + 1));
+        double speed = args.length > 4 ? Double.parseDouble(args[4]) : 1.0;
+        TraceReplay replay = new TraceReplay(host, port, args[2], args[3], speed);
+        try {
+            replay.replay(IngestTrace.read(Paths.get(args[0])));
+        } finally {
+            replay.shutdown();
+        }
+    }
+
+    /**
+     * Replay trace events, returning when all replayed associations closed.
+     * @param events the trace events
+     * @throws InterruptedException if interrupted while replaying
+     */
+    public void replay(List<IngestTrace.Event> events) throws InterruptedException {
+        Map<Integer, Set<PresentationContext>> contexts = presentationContexts(events);
+        LOG.info("replaying {} events on {} associations at {}x speed", events.size(), contexts.size(), speed);
+        Map<Integer, ReplayedAssociation> open = new HashMap<>();
+        List<ReplayedAssociation> all = new ArrayList<>();
+        long start = System.nanoTime();
+        for (IngestTrace.Event event : events) {
+            long due = start + (long) (event.getTime() * 1000 / speed);
+            long delay = due - System.nanoTime();
+            if (delay > 0)
+                TimeUnit.NANOSECONDS.sleep(delay);
+            else
+                maxLag = Math.max(maxLag, -delay);
+            ReplayedAssociation association = open.get(event.getAssociationId());
+            if (event.getType() == IngestTrace.CLOSE) {
+                if (association != null) {
+                    open.remove(event.getAssociationId());
+                    association.close();
+                }
+                continue;
+            }
+            if (association == null) {
+                association = new ReplayedAssociation(contexts.get(event.getAssociationId()));
+                open.put(event.getAssociationId(), association);
+                all.add(association);
+            }
+            association.send(event);
+        }
+        open.values().forEach(ReplayedAssociation::close);
+        for (ReplayedAssociation association : all)
+            association.awaitClosed();
+        long elapsed = System.nanoTime() - start;
+        LOG.info("replayed {} instances ({} bytes, {} failed) in {}ms, recorded duration {}ms, max lag {}ms",
+          sent.get(), sentBytes.get(), failed.get(), TimeUnit.NANOSECONDS.toMillis(elapsed),
+          events.isEmpty() ? 0 : events.get(events.size() - 1).getTime() / 1000, TimeUnit.NANOSECONDS.toMillis(maxLag));
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        scheduledExecutor.shutdownNow();
+    }
+
+    // The SOP class / transfer syntax combinations used on each association
+    private static Map<Integer, Set<PresentationContext>> presentationContexts(List<IngestTrace.Event> events) {
+        Map<Integer, Set<String>> used = new HashMap<>();
+        for (IngestTrace.Event event : events) {
+            if (event.getType() == IngestTrace.STORE)
+                used.computeIfAbsent(event.getAssociationId(), x -> new LinkedHashSet<>())
+                  .add(event.getSopClassUid() + '\\' + event.getTransferSyntaxUid());
+        }
+        Map<Integer, Set<PresentationContext>> contexts = new HashMap<>();
+        used.forEach((id, pairs) -> {
+            Set<PresentationContext> pcs = new LinkedHashSet<>();
+            int pcid = 1;
+            for (String pair : pairs) {
+                // At most 128 presentation contexts per association
+                if (pcid > 255)
+                    break;
+                String[] uids = pair.split("\\\\");
+                pcs.add(new PresentationContext(pcid, uids[0], uids[1]));
+                pcid += 2;
+            }
+            contexts.put(id, pcs);
+        });
+        return contexts;
+    }
+
+    // Synthetic instance of the recorded size, for a recorded store event
+    private FillerDataWriter createInstance(IngestTrace.Event event) throws IOException {
+        Attributes attrs = new Attributes();
+        String iuid = UIDUtils.createUID();
+        attrs.setString(Tag.SOPClassUID, VR.UI, event.getSopClassUid());
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, iuid);
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, studyUids.computeIfAbsent(event.getStudyId(),
+          x -> UIDUtils.createUID()));
+        attrs.setString(Tag.SeriesInstanceUID, VR.UI, seriesUids.computeIfAbsent(event.getSeriesId(),
+          x -> UIDUtils.createUID()));
+        attrs.setString(Tag.PatientID, VR.LO, "REPLAY-" + event.getStudyId());
+        attrs.setString(Tag.PatientName, VR.PN, "REPLAY^" + event.getStudyId());
+        attrs.setString(Tag.Modality, VR.CS, "OT");
+        attrs.setString(FILLER_CREATOR_TAG, VR.LO, FILLER_CREATOR);
+        // The stored file holds the file meta information, the attributes
+        // above and the filler element header (12 bytes)
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (DicomOutputStream out = new DicomOutputStream(encoded, UID.ExplicitVRLittleEndian)) {
+            out.writeDataset(Attributes.createFileMetaInformation(iuid, event.getSopClassUid(),
+              event.getTransferSyntaxUid()), attrs);
+        }
+        long fillerLength = Math.max(0, event.getSize() - encoded.size() - 12) & ~1L;
+        return new FillerDataWriter(attrs, (int) Math.min(fillerLength, Integer.MAX_VALUE - 1));
+    }
+
+    // Writes the attributes of a synthetic instance followed by the filler
+    // element, its value written from a small zeroed buffer. Also used by the
+    // ThreadBenchmark.
+    static class FillerDataWriter implements DataWriter {
+        private final Attributes attrs;
+        private final int fillerLength;
+
+        FillerDataWriter(Attributes attrs, int fillerLength) {
+            this.attrs = attrs;
+            this.fillerLength = fillerLength;
+        }
+
+        @Override
+        public void writeTo(PDVOutputStream out, String tsuid) throws IOException {
+            // Not closed, that would close the association's PDV stream
+            @SuppressWarnings("resource")
+            DicomOutputStream dos = new DicomOutputStream(out, tsuid);
+            dos.writeDataset(null, attrs);
+            dos.writeHeader(FILLER_TAG, VR.OB, fillerLength);
+            byte[] buffer = new byte[Math.min(FILLER_BUFFER_SIZE, fillerLength)];
+            for (int remaining = fillerLength; remaining > 0; remaining -= buffer.length)
+                dos.write(buffer, 0, Math.min(buffer.length, remaining));
+            dos.finish();
+        }
+    }
+
+    // A recorded association, replayed on its own thread so instances are
+    // sent in order, while associations run concurrently.
+    private class ReplayedAssociation {
+        private final Set<PresentationContext> contexts;
+        private final ExecutorService worker = Executors.newSingleThreadExecutor();
+        private Association as;
+        private boolean failedToOpen;
+
+        ReplayedAssociation(Set<PresentationContext> contexts) {
+            this.contexts = contexts;
+        }
+
+        void send(IngestTrace.Event event) {
+            worker.execute(() -> {
+                if (!open()) {
+                    failed.incrementAndGet();
+                    return;
+                }
+                try {
+                    FillerDataWriter instance = createInstance(event);
+                    DimseRSP rsp = as.cstore(event.getSopClassUid(), instance.attrs.getString(Tag.SOPInstanceUID),
+                      Priority.NORMAL, instance, event.getTransferSyntaxUid());
+                    rsp.next();
+                    int status = rsp.getCommand().getInt(Tag.Status, -1);
+                    if (status == Status.Success) {
+                        sent.incrementAndGet();
+                        sentBytes.addAndGet(event.getSize());
+                    } else {
+                        failed.incrementAndGet();
+                        LOG.warn("{}: C-STORE returned status: {}", as, Integer.toHexString(status));
+                    }
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    LOG.error("unable to send instance", e);
+                }
+            });
+        }
+
+        void close() {
+            worker.execute(() -> {
+                if (as == null)
+                    return;
+                try {
+                    as.release();
+                    as.waitForSocketClose();
+                } catch (Exception e) {
+                    LOG.warn("{}: unable to release association", as, e);
+                }
+            });
+            worker.shutdown();
+        }
+
+        void awaitClosed() throws InterruptedException {
+            worker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        private boolean open() {
+            if (as != null || failedToOpen)
+                return as != null;
+            AAssociateRQ rq = new AAssociateRQ();
+            rq.setCallingAET(callingAET);
+            rq.setCalledAET(calledAET);
+            contexts.forEach(rq::addPresentationContext);
+            try {
+                as = ae.connect(remote, rq);
+                return true;
+            } catch (Exception e) {
+                failedToOpen = true;
+                LOG.error("unable to open association", e);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.getmarco.storescp;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket rate limiter for upload (egress) bandwidth, shared by all
+ * uploads so they don't crowd out incoming dicom transfers on the
+ * same network interface. The rate is the configured ceiling, lowered by any
+ * matching time-of-day schedule, and lowered further while ingest throughput
+ * is above the configured threshold. A rate of 0 means unlimited.
+ */
+@Component
+public class UploadRateLimiter {
+    private static final Logger LOG = LoggerFactory.getLogger(UploadRateLimiter.class);
+
+    @Autowired
+    private Config config;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Lock lock = new ReentrantLock();
+    // Starts throttled uploads once their reservation is due
+    private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("scp-upload-limiter-"));
+    private final AtomicLong ingestBytes = new AtomicLong();
+    // Current rate (bytes per second, 0 for unlimited)
+    private volatile long rate;
+    private volatile long ingestRate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long lastUpdate = System.nanoTime();
+    private Timer throttleTimer;
+    private Counter uploadedBytes;
+
+    @PostConstruct
+    public void start() {
+        rate = computeRate(LocalTime.now(), 0);
+        throttleTimer = Timer.builder("storescp.upload.throttled")
+          .description("time uploads waited for the upload rate limiter")
+          .register(meterRegistry);
+        uploadedBytes = Counter.builder("storescp.upload.bytes")
+          .description("bytes uploaded through the upload rate limiter")
+          .baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("storescp.upload.rate.limit", this, x -> x.rate)
+          .description("current upload rate limit, 0 if unlimited")
+          .baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("storescp.ingest.rate", this, x -> x.ingestRate)
+          .description("incoming dicom transfer rate")
+          .baseUnit("bytes").register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Record bytes received from incoming dicom transfers, used to throttle
+     * uploads while ingest throughput is high.
+     * @param bytes the number of bytes received
+     */
+    public void ingestReceived(long bytes) {
+        ingestBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Update the ingest rate and the resulting upload rate limit.
+     */
+    @Scheduled(fixedRate = 1000)
+    public void update() {
+        long now = System.nanoTime();
+        long elapsed = Math.max(1, now - lastUpdate);
+        lastUpdate = now;
+        ingestRate = ingestBytes.getAndSet(0) * TimeUnit.SECONDS.toNanos(1) / elapsed;
+        long newRate = computeRate(LocalTime.now(), ingestRate);
+        if (newRate != rate)
+            LOG.info("upload rate limit changed from {} to {} bytes/s (ingest {} bytes/s)", rate, newRate, ingestRate);
+        rate = newRate;
+    }
+
+    /**
+     * Reserve the given number of bytes from the bucket for a chunk of an
+     * upload. Object store sinks call this for every chunk before sending
+     * it, so the rate applies while a large object is being sent, not just
+     * when it starts. The bytes are reserved right away (the bucket can go
+     * negative), so chunks of concurrent uploads queue up behind each other.
+     * Nothing waits on a thread: the returned future completes once the chunk
+     * may be sent.
+     * @param bytes the size of the chunk
+     * @return a future completing when the chunk may be sent
+     */
+    public CompletableFuture<Void> reserve(long bytes) {
+        uploadedBytes.increment(bytes);
+        long currentRate = rate;
+        if (currentRate <= 0)
+            return CompletableFuture.completedFuture(null);
+        long waitNanos;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            // allow bursts of up to one second worth of bytes
+            tokens = Math.min(currentRate, tokens + (now - lastRefill) * currentRate / 1e9);
+            lastRefill = now;
+            tokens -= bytes;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens * 1e9 / currentRate);
+        } finally {
+            lock.unlock();
+        }
+        if (waitNanos <= 0)
+            return CompletableFuture.completedFuture(null);
+        throttleTimer.record(waitNanos, TimeUnit.NANOSECONDS);
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        scheduler.schedule(() -> result.complete(null), waitNanos, TimeUnit.NANOSECONDS);
+        return result;
+    }
+
+    // Upload rate for the given time of day and ingest rate: the lowest of
+    // the configured ceiling, the first matching schedule, and the ingest
+    // throttle rate if ingest is above its threshold.
+    private long computeRate(LocalTime time, long currentIngestRate) {
+        long result = config.getUploadRateLimit();
+        Config.RateSchedule schedule = config.getUploadRateSchedule(time);
+        if (schedule != null)
+            result = lowest(result, schedule.getRate());
+        Config.IngestThrottle throttle = config.getUploadIngestThrottle();
+        if (throttle != null && throttle.getIngestThreshold() > 0 && currentIngestRate > throttle.getIngestThreshold())
+            result = lowest(result, throttle.getRate());
+        return result;
+    }
+
+    // Lowest of two rates where 0 means unlimited
+    private static long lowest(long a, long b) {
+        if (a <= 0)
+            return b;
+        if (b <= 0)
+            return a;
+        return Math.min(a, b);
+    }
+}
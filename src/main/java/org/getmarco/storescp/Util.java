@@ -7,9 +7,13 @@ import org.dcm4che3.net.Association;
 import org.dcm4che3.util.StringUtils;
 import org.slf4j.Logger;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Objects;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
@@ -90,7 +94,7 @@ public class Util {
     public static Attributes parseDir(Path dicomDir) throws IOException {
         Attributes attributes = null;
         try (Stream<Path> stream = Files.list(dicomDir)) {
-            attributes = stream.map(path -> {
+            attributes = stream.filter(Util::isDicomFile).map(path -> {
                 try {
                     return parse(path);
                 } catch (IOException e) {
@@ -105,25 +109,83 @@ public class Util {
     }
 
     /**
-     * Create a zip archive from a given source directory.
+     * Create a zip archive of the dicom files in a given source directory.
+     * Files are deflated. For dicom files with a checksum file (see
+     * {@link Checksums}) the CRC-32 the zip stream computes for the entry is
+     * compared with the one computed when the file was received, so a file
+     * changed on disk since it was received fails the archive.
      * @param sourceDir the directory to 'zip'
      * @param zipFile the zip archive file to create
+     * @return the MD5 digest of the created zip archive
      * @throws IOException if unable to open the source directory or unable to create the output zip file
      */
-    public static void zipDir(Path sourceDir, Path zipFile) throws IOException {
+    public static byte[] zipDir(Path sourceDir, Path zipFile) throws IOException {
         Files.createFile(zipFile);
-        try (ZipOutputStream zs = new ZipOutputStream(Files.newOutputStream(zipFile)); Stream<Path> stream = Files.walk(sourceDir)) {
-            stream.filter(path -> !Files.isDirectory(path))
+        MessageDigest md5 = md5();
+        try (ZipOutputStream zs = new ZipOutputStream(new BufferedOutputStream(
+          new DigestOutputStream(Files.newOutputStream(zipFile), md5))); Stream<Path> stream = Files.walk(sourceDir)) {
+            stream.filter(path -> !Files.isDirectory(path) && isDicomFile(path))
               .forEach(path -> {
                   ZipEntry zipEntry = new ZipEntry(sourceDir.relativize(path).toString());
                   try {
                       zs.putNextEntry(zipEntry);
                       Files.copy(path, zs);
                       zs.closeEntry();
+                      Path sumFile = Checksums.checksumFile(path);
+                      if (Files.exists(sumFile) && Checksums.read(sumFile).getCrc32() != zipEntry.getCrc())
+                          throw new IOException("crc-32 changed since received: " + path);
                   } catch (IOException e) {
                       throw new RuntimeException("error writing file to zip: " + zipEntry, e);
                   }
               });
         }
+        return md5.digest();
+    }
+
+    /**
+     * Check whether a path is a received dicom file (rather than, for
+     * example, its checksum file).
+     * @param path the path to check
+     * @return whether the path has the dicom file extension
+     */
+    public static boolean isDicomFile(Path path) {
+        return path.getFileName().toString().endsWith(Config.DCM_EXT);
+    }
+
+    /**
+     * Returns a new MD5 message digest.
+     * @return the message digest
+     */
+    public static MessageDigest md5() {
+        return messageDigest("MD5");
+    }
+
+    /**
+     * Returns a new SHA-256 message digest.
+     * @return the message digest
+     */
+    public static MessageDigest sha256() {
+        return messageDigest("SHA-256");
+    }
+
+    /**
+     * Format bytes as a lowercase hex string.
+     * @param bytes the bytes to format
+     * @return the hex string
+     */
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    private static MessageDigest messageDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support MD5 and SHA-256
+            throw new IllegalStateException(e);
+        }
     }
 }
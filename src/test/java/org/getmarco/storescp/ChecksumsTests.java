@@ -0,0 +1,105 @@
+package org.getmarco.storescp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ChecksumsTests {
+
+	private static final byte[] CHECK = "123456789".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ABC = "abc".getBytes(StandardCharsets.US_ASCII);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void crc32CheckValue() {
+		assertEquals("cbf43926", new Checksums(CHECK.length, crc32(CHECK), null).getCrc32Hex());
+	}
+
+	@Test
+	public void crc32HexIsZeroPadded() {
+		assertEquals("00001234", new Checksums(0, 0x1234, null).getCrc32Hex());
+	}
+
+	@Test
+	public void sha256KnownVectors() {
+		assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+		  Util.toHex(Util.sha256().digest(new byte[0])));
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+		  Util.toHex(Util.sha256().digest(ABC)));
+	}
+
+	@Test
+	public void md5KnownVectors() {
+		assertEquals("d41d8cd98f00b204e9800998ecf8427e", Util.toHex(Util.md5().digest(new byte[0])));
+		assertEquals("900150983cd24fb0d6963f7d28e17f72", Util.toHex(Util.md5().digest(ABC)));
+	}
+
+	@Test
+	public void checksumFileRoundTrip() throws IOException {
+		Path sumFile = folder.getRoot().toPath().resolve("1.2.3.dcm.sum");
+		Checksums checksums = new Checksums(CHECK.length, crc32(CHECK), Util.toHex(Util.sha256().digest(CHECK)));
+		checksums.write(sumFile);
+		assertEquals(checksums, Checksums.read(sumFile));
+
+		Checksums crcOnly = new Checksums(CHECK.length, crc32(CHECK), null);
+		crcOnly.write(sumFile);
+		assertEquals("9 cbf43926", new String(Files.readAllBytes(sumFile), StandardCharsets.US_ASCII));
+		assertNull(Checksums.read(sumFile).getSha256());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsMalformedChecksumFile() throws IOException {
+		Path sumFile = folder.getRoot().toPath().resolve("1.2.3.dcm.sum");
+		Files.write(sumFile, "9 not-hex".getBytes(StandardCharsets.US_ASCII));
+		Checksums.read(sumFile);
+	}
+
+	@Test
+	public void checksumFileOfDicomFile() {
+		Path dicomFile = folder.getRoot().toPath().resolve("1.2.3.dcm");
+		assertEquals(dicomFile.resolveSibling("1.2.3.dcm.sum"), Checksums.checksumFile(dicomFile));
+	}
+
+	@Test
+	public void zipChecksReceivedCrc() throws IOException {
+		Path studyDir = folder.newFolder("study").toPath();
+		Path dicomFile = studyDir.resolve("1.2.3.dcm");
+		Files.write(dicomFile, CHECK);
+		new Checksums(CHECK.length, crc32(CHECK), null).write(Checksums.checksumFile(dicomFile));
+		Path zipFile = folder.getRoot().toPath().resolve("study.zip");
+		byte[] md5 = Util.zipDir(studyDir, zipFile);
+		assertEquals(Util.toHex(Util.md5().digest(Files.readAllBytes(zipFile))), Util.toHex(md5));
+		try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+			assertNotNull(zip.getEntry("1.2.3.dcm"));
+			assertEquals(crc32(CHECK), zip.getEntry("1.2.3.dcm").getCrc());
+		}
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void zipRejectsFileChangedSinceReceived() throws IOException {
+		Path studyDir = folder.newFolder("study").toPath();
+		Path dicomFile = studyDir.resolve("1.2.3.dcm");
+		Files.write(dicomFile, CHECK);
+		new Checksums(ABC.length, crc32(ABC), null).write(Checksums.checksumFile(dicomFile));
+		Util.zipDir(studyDir, folder.getRoot().toPath().resolve("study.zip"));
+	}
+
+	private static long crc32(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,51 @@
+package org.getmarco.storescp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigTests {
+
+	@Test
+	public void defaultListeners() {
+		Config config = new Config();
+		config.getTls().setEnabled(true);
+		List<String> names = config.getEffectiveListeners().stream().map(Config.Listener::getName)
+		  .collect(Collectors.toList());
+		assertEquals(Arrays.asList(Config.DEFAULT_LISTENER, Config.DEFAULT_TLS_LISTENER), names);
+		assertTrue(config.isAcceptedOnListener(Config.DEFAULT_LISTENER, "SCP"));
+		assertFalse(config.isAcceptedOnListener("unknown", "SCP"));
+	}
+
+	@Test
+	public void listenerAcceptsConfiguredAetitles() {
+		Config config = new Config();
+		config.setListeners(Arrays.asList(listener("any", 11117), listener("modality-lan", 11118, "SCP")));
+		assertTrue(config.isAcceptedOnListener("any", "OTHER"));
+		assertTrue(config.isAcceptedOnListener("modality-lan", "SCP"));
+		assertFalse(config.isAcceptedOnListener("modality-lan", "OTHER"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void duplicateListenerNamesRejected() {
+		Config config = new Config();
+		config.setListeners(Arrays.asList(listener("lan", 11117), listener("lan", 11118)));
+		config.getEffectiveListeners();
+	}
+
+	private static Config.Listener listener(String name, int port, String... calledAetitles) {
+		Config.Listener listener = new Config.Listener();
+		listener.setName(name);
+		listener.setPort(port);
+		listener.setCalledAetitles(calledAetitles.length == 0 ? Collections.emptyList()
+		  : Arrays.asList(calledAetitles));
+		return listener;
+	}
+}
@@ -0,0 +1,49 @@
+package org.getmarco.storescp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DiskSpaceMonitorTests {
+
+	private DiskSpaceMonitor monitor;
+
+	@Before
+	public void setUp() {
+		Config config = new Config();
+		config.setDiskHighWatermark(90);
+		config.setDiskLowWatermark(80);
+		monitor = new DiskSpaceMonitor();
+		ReflectionTestUtils.setField(monitor, "config", config);
+	}
+
+	@Test
+	public void overloadedAtHighWatermark() {
+		monitor.update(89.9);
+		assertFalse(monitor.isOverloaded());
+		monitor.update(90);
+		assertTrue(monitor.isOverloaded());
+	}
+
+	@Test
+	public void staysOverloadedBetweenWatermarks() {
+		monitor.update(95);
+		monitor.update(85);
+		assertTrue(monitor.isOverloaded());
+		monitor.update(80);
+		assertTrue(monitor.isOverloaded());
+		monitor.update(79.9);
+		assertFalse(monitor.isOverloaded());
+	}
+
+	@Test
+	public void staysAcceptingBetweenWatermarks() {
+		monitor.update(95);
+		monitor.update(70);
+		monitor.update(85);
+		assertFalse(monitor.isOverloaded());
+	}
+}
@@ -0,0 +1,179 @@
+package org.getmarco.storescp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FinalizedStudiesTests {
+
+	private static final String STUDY_UID = "1.2.3";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Config config;
+	private FinalizedStudies finalizedStudies;
+
+	@Before
+	public void setUp() {
+		config = new Config();
+		config.setFinalizedStudyDir(folder.getRoot().toString());
+		config.setFinalizedStudyRetention(60000);
+		finalizedStudies = create();
+	}
+
+	@Test
+	public void firstArchiveIsNotADelta() {
+		List<MetaData.Instance> instances = instances("a", "1", "2");
+		FinalizedStudies.Reservation reservation = finalizedStudies.reserve(study("a"), instances);
+		assertNull(reservation.getBaseArchiveId());
+		assertEquals(instances, reservation.getNewInstances());
+		assertEquals(instances, reservation.getAllInstances());
+		assertTrue(finalizedStudies.get("SCP", "SCU", STUDY_UID).get().isPending());
+	}
+
+	@Test
+	public void lateInstancesChainToPendingArchive() {
+		finalizedStudies.reserve(study("a"), instances("a", "1", "2"));
+		// The first archive is still being uploaded
+		FinalizedStudies.Reservation reservation = finalizedStudies.reserve(study("b"), instances("b", "2", "3"));
+		assertEquals("a", reservation.getBaseArchiveId());
+		assertEquals(instances("b", "3"), reservation.getNewInstances());
+		assertEquals(Arrays.asList(instance("a", "1"), instance("a", "2"), instance("b", "3")),
+		  reservation.getAllInstances());
+		FinalizedStudy study = finalizedStudies.get("SCP", "SCU", STUDY_UID).get();
+		assertEquals("a", study.getArchiveId());
+		assertEquals(Collections.singletonList("b"), study.getDeltaArchiveIds());
+		assertEquals(Arrays.asList("a", "b"), study.getPendingArchiveIds());
+	}
+
+	@Test
+	public void nothingReservedForArchivedInstances() {
+		finalizedStudies.reserve(study("a"), instances("a", "1", "2"));
+		FinalizedStudies.Reservation reservation = finalizedStudies.reserve(study("b"), instances("b", "1"));
+		assertTrue(reservation.getNewInstances().isEmpty());
+		assertTrue(finalizedStudies.get("SCP", "SCU", STUDY_UID).get().getDeltaArchiveIds().isEmpty());
+	}
+
+	@Test
+	public void failedDeltaIsArchivedAgain() {
+		finalizedStudies.reserve(study("a"), instances("a", "1"));
+		finalizedStudies.uploaded(study("a"));
+		finalizedStudies.reserve(study("b"), instances("b", "2"));
+		finalizedStudies.failed(study("b"));
+		FinalizedStudies.Reservation reservation = finalizedStudies.reserve(study("c"), instances("c", "2"));
+		assertEquals("a", reservation.getBaseArchiveId());
+		assertEquals(instances("c", "2"), reservation.getNewInstances());
+		assertEquals(Collections.singletonList("c"), finalizedStudies.get("SCP", "SCU", STUDY_UID).get().getDeltaArchiveIds());
+	}
+
+	@Test
+	public void failedFirstArchiveDropsDeltas() {
+		finalizedStudies.reserve(study("a"), instances("a", "1"));
+		finalizedStudies.reserve(study("b"), instances("b", "2"));
+		finalizedStudies.failed(study("a"));
+		assertFalse(finalizedStudies.get("SCP", "SCU", STUDY_UID).isPresent());
+		// The delta refers to an archive that was never uploaded, so the next
+		// archive is a full one
+		FinalizedStudies.Reservation reservation = finalizedStudies.reserve(study("c"), instances("c", "1", "2"));
+		assertNull(reservation.getBaseArchiveId());
+		assertEquals(instances("c", "1", "2"), reservation.getNewInstances());
+		finalizedStudies.uploaded(study("b"));
+		assertEquals(Collections.singletonList("c"),
+		  finalizedStudies.get("SCP", "SCU", STUDY_UID).get().getPendingArchiveIds());
+	}
+
+	@Test
+	public void studiesKeptPerAetitlePair() {
+		finalizedStudies.reserve(study("a"), instances("a", "1"));
+		CompletedStudy other = new CompletedStudy(Paths.get("zip", "b"), "SCP", "OTHER", STUDY_UID, "CT", 0);
+		FinalizedStudies.Reservation reservation = finalizedStudies.reserve(other, instances("b", "1"));
+		assertNull(reservation.getBaseArchiveId());
+		assertEquals(instances("b", "1"), reservation.getNewInstances());
+		assertTrue(finalizedStudies.isArchived("SCP", "SCU", "1"));
+		assertTrue(finalizedStudies.isArchived("SCP", "OTHER", "1"));
+		assertFalse(finalizedStudies.isArchived("SCP", "OTHER2", "1"));
+		finalizedStudies.failed(other);
+		assertFalse(finalizedStudies.isArchived("SCP", "OTHER", "1"));
+		assertTrue(finalizedStudies.isArchived("SCP", "SCU", "1"));
+	}
+
+	@Test
+	public void failedFirstArchiveDropsRecord() {
+		finalizedStudies.reserve(study("a"), instances("a", "1"));
+		finalizedStudies.failed(study("a"));
+		assertFalse(finalizedStudies.get("SCP", "SCU", STUDY_UID).isPresent());
+		assertFalse(Files.exists(recordFile()));
+	}
+
+	@Test
+	public void recordsSurviveRestart() {
+		finalizedStudies.reserve(study("a"), instances("a", "1"));
+		finalizedStudies.uploaded(study("a"));
+		finalizedStudies.reserve(study("b"), instances("b", "2"));
+		// The delta never finished uploading before the restart
+		FinalizedStudy study = create().get("SCP", "SCU", STUDY_UID).get();
+		assertFalse(study.isPending());
+		assertEquals(instances("a", "1"), study.getInstances());
+		assertTrue(study.getDeltaArchiveIds().isEmpty());
+	}
+
+	@Test
+	public void purgeDropsExpiredRecords() {
+		finalizedStudies.reserve(study("a"), instances("a", "1"));
+		finalizedStudies.uploaded(study("a"));
+		finalizedStudies.purge();
+		assertTrue(finalizedStudies.get("SCP", "SCU", STUDY_UID).isPresent());
+		config.setFinalizedStudyRetention(-1);
+		finalizedStudies.purge();
+		assertFalse(finalizedStudies.get("SCP", "SCU", STUDY_UID).isPresent());
+		assertFalse(Files.exists(recordFile()));
+	}
+
+	@Test
+	public void purgeKeepsPendingRecords() {
+		finalizedStudies.reserve(study("a"), instances("a", "1"));
+		config.setFinalizedStudyRetention(-1);
+		finalizedStudies.purge();
+		assertTrue(finalizedStudies.get("SCP", "SCU", STUDY_UID).isPresent());
+	}
+
+	private FinalizedStudies create() {
+		FinalizedStudies studies = new FinalizedStudies();
+		ReflectionTestUtils.setField(studies, "config", config);
+		ReflectionTestUtils.setField(studies, "objectMapper", new ObjectMapper());
+		return studies;
+	}
+
+	private Path recordFile() {
+		return folder.getRoot().toPath().resolve("SCP").resolve("SCU").resolve(STUDY_UID + FinalizedStudies.JSON_EXT);
+	}
+
+	private static CompletedStudy study(String archiveId) {
+		return new CompletedStudy(Paths.get("zip", archiveId), "SCP", "SCU", STUDY_UID, "CT", 0);
+	}
+
+	private static List<MetaData.Instance> instances(String archiveId, String... iuids) {
+		return Arrays.stream(iuids).map(iuid -> instance(archiveId, iuid)).collect(Collectors.toList());
+	}
+
+	private static MetaData.Instance instance(String archiveId, String iuid) {
+		return new MetaData.Instance(iuid, archiveId, 100, "cbf43926", null);
+	}
+}
@@ -0,0 +1,109 @@
+package org.getmarco.storescp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IngestTraceTests {
+
+	private static final String CT = "1.2.840.10008.5.1.4.1.1.2";
+	private static final String MR = "1.2.840.10008.5.1.4.1.1.4";
+	private static final String EXPLICIT_LE = "1.2.840.10008.1.2.1";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void roundTrip() throws IOException {
+		Path traceFile = folder.getRoot().toPath().resolve("ingest.trace");
+		Object first = new Object();
+		Object second = new Object();
+		try (IngestTrace.Writer writer = new IngestTrace.Writer(traceFile)) {
+			long start = System.nanoTime();
+			writer.instanceStored(start + 1000000, first, "SCU", "SCP", "1.1", "1.1.1", CT, EXPLICIT_LE, 1234);
+			writer.instanceStored(start + 2000000, second, "MOD", "SCP", "2.1", "2.1.1", MR, EXPLICIT_LE, 5678);
+			writer.instanceStored(start + 3000000, first, "SCU", "SCP", "1.1", "1.1.2", CT, EXPLICIT_LE, 1L << 40);
+			writer.associationClosed(start + 4000000, first);
+		}
+
+		List<IngestTrace.Event> events = IngestTrace.read(traceFile);
+		assertEquals(4, events.size());
+
+		IngestTrace.Event event = events.get(0);
+		assertEquals(IngestTrace.STORE, event.getType());
+		assertEquals(0, event.getAssociationId());
+		assertEquals(0, event.getCallingId());
+		assertEquals(1, event.getCalledId());
+		assertEquals(0, event.getStudyId());
+		assertEquals(0, event.getSeriesId());
+		assertEquals(CT, event.getSopClassUid());
+		assertEquals(EXPLICIT_LE, event.getTransferSyntaxUid());
+		assertEquals(1234, event.getSize());
+
+		event = events.get(1);
+		assertEquals(1, event.getAssociationId());
+		assertEquals(2, event.getCallingId());
+		assertEquals(1, event.getCalledId());
+		assertEquals(1, event.getStudyId());
+		assertEquals(MR, event.getSopClassUid());
+		assertEquals(5678, event.getSize());
+
+		event = events.get(2);
+		assertEquals(0, event.getAssociationId());
+		assertEquals(0, event.getStudyId());
+		assertEquals(2, event.getSeriesId());
+		assertEquals(CT, event.getSopClassUid());
+		assertEquals(1L << 40, event.getSize());
+
+		event = events.get(3);
+		assertEquals(IngestTrace.CLOSE, event.getType());
+		assertEquals(0, event.getAssociationId());
+
+		// One millisecond between events, give or take rounding to microseconds
+		for (int i = 1; i < events.size(); i++)
+			assertEquals(1000, events.get(i).getTime() - events.get(i - 1).getTime(), 1);
+	}
+
+	@Test
+	public void nullValuesGetTheirOwnId() throws IOException {
+		Path traceFile = folder.getRoot().toPath().resolve("ingest.trace");
+		Object association = new Object();
+		try (IngestTrace.Writer writer = new IngestTrace.Writer(traceFile)) {
+			long start = System.nanoTime();
+			writer.instanceStored(start, association, "SCU", "SCP", null, null, CT, EXPLICIT_LE, 1);
+			writer.instanceStored(start, association, "SCU", "SCP", "null", "null", CT, EXPLICIT_LE, 1);
+		}
+		List<IngestTrace.Event> events = IngestTrace.read(traceFile);
+		assertNotEquals(events.get(0).getStudyId(), events.get(1).getStudyId());
+		assertNotEquals(events.get(0).getSeriesId(), events.get(1).getSeriesId());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOtherFiles() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("other");
+		Files.write(file, "not a trace file".getBytes("US-ASCII"));
+		IngestTrace.read(file);
+	}
+
+	@Test
+	public void timeNeverGoesBackwards() throws IOException {
+		Path traceFile = folder.getRoot().toPath().resolve("ingest.trace");
+		Object association = new Object();
+		try (IngestTrace.Writer writer = new IngestTrace.Writer(traceFile)) {
+			long start = System.nanoTime();
+			writer.instanceStored(start + 2000000, association, "SCU", "SCP", "1", "1", CT, EXPLICIT_LE, 1);
+			writer.instanceStored(start + 1000000, association, "SCU", "SCP", "1", "1", CT, EXPLICIT_LE, 1);
+		}
+		List<IngestTrace.Event> events = IngestTrace.read(traceFile);
+		assertTrue(events.get(1).getTime() >= events.get(0).getTime());
+	}
+}
@@ -0,0 +1,118 @@
+package org.getmarco.storescp;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class StudySchedulerTests {
+
+	private Config config;
+	private DiskSpaceMonitor diskSpaceMonitor;
+	private StudyScheduler scheduler;
+	private final BlockingQueue<String> processed = new LinkedBlockingQueue<>();
+
+	@Before
+	public void setUp() {
+		config = new Config();
+		config.setDiskHighWatermark(90);
+		config.setDiskLowWatermark(80);
+		diskSpaceMonitor = new DiskSpaceMonitor();
+		ReflectionTestUtils.setField(diskSpaceMonitor, "config", config);
+		StudyTracer tracer = new StudyTracer();
+		ReflectionTestUtils.setField(tracer, "config", config);
+		StudyProcessor processor = new StudyProcessor() {
+			@Override
+			public void process(CompletedStudy study) {
+				processed.add(study.getId());
+			}
+		};
+		scheduler = new StudyScheduler();
+		ReflectionTestUtils.setField(scheduler, "config", config);
+		ReflectionTestUtils.setField(scheduler, "processor", processor);
+		ReflectionTestUtils.setField(scheduler, "meterRegistry", new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(scheduler, "tracer", tracer);
+		ReflectionTestUtils.setField(scheduler, "diskSpaceMonitor", diskSpaceMonitor);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		scheduler.stop();
+	}
+
+	@Test
+	public void higherPriorityClassFirst() throws InterruptedException {
+		Config.PriorityRule urgent = new Config.PriorityRule();
+		urgent.setName("urgent");
+		urgent.setPriority(10);
+		urgent.setModality("MR");
+		config.setProcessingPriorities(Collections.singletonList(urgent));
+		scheduler.submit(study("ct1", "SCU", "CT", 100));
+		scheduler.submit(study("ct2", "SCU", "CT", 100));
+		scheduler.submit(study("mr1", "SCU", "MR", 100));
+		assertEquals(Arrays.asList("mr1", "ct1", "ct2"), dispatch(3));
+	}
+
+	@Test
+	public void largeBacklogDoesNotStarveOtherSender() throws InterruptedException {
+		scheduler.submit(study("a1", "SCU-A", "CT", 100));
+		scheduler.submit(study("a2", "SCU-A", "CT", 100));
+		scheduler.submit(study("a3", "SCU-A", "CT", 100));
+		scheduler.submit(study("b1", "SCU-B", "CT", 100));
+		assertEquals(Arrays.asList("a1", "b1", "a2", "a3"), dispatch(4));
+	}
+
+	@Test
+	public void heavierSenderGetsLargerShare() throws InterruptedException {
+		config.getCallingAetitleWeights().put("SCU-A", 2);
+		scheduler.submit(study("a1", "SCU-A", "CT", 100));
+		scheduler.submit(study("a2", "SCU-A", "CT", 100));
+		scheduler.submit(study("a3", "SCU-A", "CT", 100));
+		scheduler.submit(study("b1", "SCU-B", "CT", 120));
+		assertEquals(Arrays.asList("a1", "a2", "b1", "a3"), dispatch(4));
+	}
+
+	@Test
+	public void largestStudyFirstWhenOverloaded() throws InterruptedException {
+		Config.PriorityRule urgent = new Config.PriorityRule();
+		urgent.setName("urgent");
+		urgent.setPriority(10);
+		urgent.setModality("MR");
+		config.setProcessingPriorities(Collections.singletonList(urgent));
+		diskSpaceMonitor.update(95);
+		scheduler.submit(study("mr1", "SCU", "MR", 100));
+		scheduler.submit(study("ct1", "SCU", "CT", 1000));
+		scheduler.submit(study("ct2", "SCU", "CT", 10));
+		assertEquals(Arrays.asList("ct1", "mr1", "ct2"), dispatch(3));
+	}
+
+	// Start dispatching the studies submitted so far, and return the ids of
+	// the first studies handed to the processor in order.
+	private List<String> dispatch(int count) throws InterruptedException {
+		scheduler.start();
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			String id = processed.poll(10, TimeUnit.SECONDS);
+			assertNotNull(id);
+			ids.add(id);
+		}
+		return ids;
+	}
+
+	private static CompletedStudy study(String id, String callingAET, String modality, long size) {
+		return new CompletedStudy(Paths.get("zip", id), "SCP", callingAET, "1.2." + id.hashCode(), modality, size);
+	}
+}
@@ -0,0 +1,124 @@
+package org.getmarco.storescp;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TlsSupportTests {
+
+	private static final String PASSWORD = "changeit";
+	private static final String[] PROTOCOLS = {"TLSv1.2"};
+
+	private MeterRegistry meterRegistry;
+	private SSLContext sslContext;
+	private SSLServerSocket serverSocket;
+	private final ExecutorService acceptor = Executors.newSingleThreadExecutor();
+
+	@Before
+	public void setUp() throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		try (InputStream in = getClass().getResourceAsStream("/tls/localhost.jks")) {
+			keyStore.load(in, PASSWORD.toCharArray());
+		}
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, PASSWORD.toCharArray());
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(keyStore);
+		sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+
+		meterRegistry = new SimpleMeterRegistry();
+		TlsSupport tlsSupport = new TlsSupport();
+		ReflectionTestUtils.setField(tlsSupport, "meterRegistry", meterRegistry);
+		// Listening socket set up like dcm4che sets up its TLS listener
+		serverSocket = (SSLServerSocket) tlsSupport.instrument(sslContext).getServerSocketFactory()
+		  .createServerSocket();
+		serverSocket.setEnabledProtocols(PROTOCOLS);
+		serverSocket.setNeedClientAuth(true);
+		serverSocket.bind(new InetSocketAddress("localhost", 0));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		acceptor.shutdownNow();
+		serverSocket.close();
+	}
+
+	@Test
+	public void acceptedSocketsAreTls() throws Exception {
+		Future<Socket> accepted = acceptor.submit(() -> {
+			Socket socket = serverSocket.accept();
+			socket.getInputStream().read();
+			return socket;
+		});
+		connect();
+		SSLSocket socket = (SSLSocket) accepted.get(10, TimeUnit.SECONDS);
+		assertFalse(socket.getUseClientMode());
+		assertTrue(socket.getNeedClientAuth());
+		socket.close();
+	}
+
+	@Test
+	public void inboundHandshakesTimed() throws Exception {
+		acceptor.submit(() -> {
+			for (int i = 0; i < 2; i++) {
+				try (Socket socket = serverSocket.accept()) {
+					socket.getInputStream().read();
+				}
+			}
+			return null;
+		});
+		connect();
+		awaitCount("inbound", false, 1);
+		// The session created by the first handshake is resumed
+		Thread.sleep(10);
+		connect();
+		awaitCount("inbound", true, 1);
+		assertEquals(1, count("inbound", false));
+		assertEquals(0, count("outbound", false) + count("outbound", true));
+	}
+
+	// Open a connection to the listening socket and complete a handshake
+	private void connect() throws Exception {
+		try (SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket("localhost",
+		  serverSocket.getLocalPort())) {
+			socket.setEnabledProtocols(PROTOCOLS);
+			socket.startHandshake();
+			socket.getOutputStream().write(1);
+		}
+	}
+
+	// Handshake completed listeners are notified on a thread of their own
+	private void awaitCount(String direction, boolean resumed, long expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (count(direction, resumed) < expected && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(expected, count(direction, resumed));
+	}
+
+	private long count(String direction, boolean resumed) {
+		return meterRegistry.get("storescp.tls.handshake").tag("direction", direction)
+		  .tag("resumed", String.valueOf(resumed)).timer().count();
+	}
+}
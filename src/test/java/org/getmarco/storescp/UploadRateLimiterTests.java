@@ -0,0 +1,113 @@
+package org.getmarco.storescp;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadRateLimiterTests {
+
+	private Config config;
+	private UploadRateLimiter limiter;
+
+	@Before
+	public void setUp() {
+		config = new Config();
+		limiter = new UploadRateLimiter();
+		ReflectionTestUtils.setField(limiter, "config", config);
+		ReflectionTestUtils.setField(limiter, "meterRegistry", new SimpleMeterRegistry());
+	}
+
+	@After
+	public void tearDown() {
+		limiter.stop();
+	}
+
+	@Test
+	public void unlimitedRateNeverWaits() {
+		limiter.start();
+		assertTrue(limiter.reserve(100_000_000).isDone());
+		assertTrue(limiter.reserve(100_000_000).isDone());
+	}
+
+	@Test
+	public void fullBucketSendsBurstRightAway() {
+		config.setUploadRateLimit(1000);
+		limiter.start();
+		fillBucket(1000);
+		assertTrue(limiter.reserve(1000).isDone());
+	}
+
+	@Test
+	public void emptyBucketWaitsForRefill() throws Exception {
+		config.setUploadRateLimit(1000);
+		limiter.start();
+		fillBucket(1000);
+		limiter.reserve(1000);
+		long start = System.nanoTime();
+		CompletableFuture<Void> chunk = limiter.reserve(500);
+		assertFalse(chunk.isDone());
+		chunk.get(5, TimeUnit.SECONDS);
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+	}
+
+	@Test
+	public void burstCappedAtOneSecond() {
+		config.setUploadRateLimit(1000);
+		limiter.start();
+		// Idle for ten seconds, the bucket only holds one second worth of bytes
+		ReflectionTestUtils.setField(limiter, "tokens", 0d);
+		ReflectionTestUtils.setField(limiter, "lastRefill", System.nanoTime() - TimeUnit.SECONDS.toNanos(10));
+		assertTrue(limiter.reserve(1000).isDone());
+		assertFalse(limiter.reserve(1000).isDone());
+	}
+
+	@Test
+	public void scheduleWithinDay() {
+		Config.RateSchedule schedule = schedule("08:00", "18:00");
+		assertFalse(schedule.contains(LocalTime.of(7, 59)));
+		assertTrue(schedule.contains(LocalTime.of(8, 0)));
+		assertTrue(schedule.contains(LocalTime.of(17, 59)));
+		assertFalse(schedule.contains(LocalTime.of(18, 0)));
+		assertFalse(schedule.contains(LocalTime.MIDNIGHT));
+	}
+
+	@Test
+	public void scheduleAcrossMidnight() {
+		Config.RateSchedule schedule = schedule("22:00", "06:00");
+		assertFalse(schedule.contains(LocalTime.of(21, 59)));
+		assertTrue(schedule.contains(LocalTime.of(22, 0)));
+		assertTrue(schedule.contains(LocalTime.of(23, 59, 59)));
+		assertTrue(schedule.contains(LocalTime.MIDNIGHT));
+		assertTrue(schedule.contains(LocalTime.of(5, 59)));
+		assertFalse(schedule.contains(LocalTime.of(6, 0)));
+		assertFalse(schedule.contains(LocalTime.NOON));
+	}
+
+	@Test
+	public void incompleteScheduleNeverMatches() {
+		assertFalse(schedule(null, "06:00").contains(LocalTime.of(1, 0)));
+		assertFalse(schedule("22:00", null).contains(LocalTime.of(23, 0)));
+	}
+
+	// Set the bucket to hold the given number of bytes as of now
+	private void fillBucket(double bytes) {
+		ReflectionTestUtils.setField(limiter, "tokens", bytes);
+		ReflectionTestUtils.setField(limiter, "lastRefill", System.nanoTime());
+	}
+
+	private static Config.RateSchedule schedule(String from, String to) {
+		Config.RateSchedule schedule = new Config.RateSchedule();
+		schedule.setFrom(from);
+		schedule.setTo(to);
+		return schedule;
+	}
+}